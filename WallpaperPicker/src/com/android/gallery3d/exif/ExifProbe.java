@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads single values from the IFD0 of a jpeg's exif data, e.g. the orientation, without
+ * building an {@link ExifInterface}. Only the APP1 segment holding the exif data is read, the
+ * IFD0 entries are looked up in place and no {@link ExifTag} is created.
+ *
+ * Only the first exif APP1 segment before the image data is looked at, like
+ * {@link ExifParser} does.
+ */
+public final class ExifProbe {
+
+    // "Exif" and two zero bytes, before the TIFF header in the APP1 segment.
+    private static final int EXIF_PREFIX_SIZE = 6;
+    private static final int TIFF_HEADER_SIZE = 8;
+
+    private ExifProbe() {
+    }
+
+    /**
+     * Returns the rotation in degrees for the orientation of the jpeg file, or 0 if it has none.
+     */
+    public static int getRotation(String path) throws IOException {
+        return toRotation(getIfd0IntValue(path, ExifInterface.TAG_ORIENTATION));
+    }
+
+    /**
+     * Returns the rotation in degrees for the orientation of the jpeg, or 0 if it has none.
+     * The stream is read up to the end of the exif data, and not closed.
+     */
+    public static int getRotation(InputStream is) throws IOException {
+        return toRotation(getIfd0IntValue(is, ExifInterface.TAG_ORIENTATION));
+    }
+
+    /**
+     * Returns the value of an IFD0 tag of the jpeg file, or null if the file is not a jpeg or
+     * the tag is not set. The APP1 segment is mapped rather than copied.
+     *
+     * @param tagId an IFD0 tag from {@link ExifInterface}, e.g.
+     *            {@link ExifInterface#TAG_ORIENTATION}.
+     * @see #getIfd0IntValue(InputStream, int)
+     */
+    public static Integer getIfd0IntValue(String path, int tagId) throws IOException {
+        final short tag = getIfd0TagKey(tagId);
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(EXIF_PREFIX_SIZE);
+            long pos = 0;
+            if (!read(channel, header, pos, 2) || header.getShort(0) != JpegHeader.SOI) {
+                return null;
+            }
+            pos += 2;
+            while (read(channel, header, pos, 4)) {
+                short marker = header.getShort(0);
+                int length = (header.getShort(2) & 0xffff) - 2;
+                if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker) || length < 0) {
+                    return null;
+                }
+                pos += 4;
+                if (marker == JpegHeader.APP1 && length >= EXIF_PREFIX_SIZE + TIFF_HEADER_SIZE
+                        && read(channel, header, pos, EXIF_PREFIX_SIZE) && isExifPrefix(header)) {
+                    long tiffStart = pos + EXIF_PREFIX_SIZE;
+                    long tiffLength = Math.min(length - EXIF_PREFIX_SIZE,
+                            channel.size() - tiffStart);
+                    return getIntValue(
+                            channel.map(FileChannel.MapMode.READ_ONLY, tiffStart, tiffLength),
+                            tag);
+                }
+                pos += length;
+            }
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the value of an IFD0 tag of the jpeg, or null if the stream is not a jpeg or the
+     * tag is not set. Only the tags with a single byte, short or long value are supported.
+     * The stream is read up to the end of the exif data, and not closed.
+     *
+     * @param tagId an IFD0 tag from {@link ExifInterface}, e.g.
+     *            {@link ExifInterface#TAG_ORIENTATION}.
+     */
+    public static Integer getIfd0IntValue(InputStream is, int tagId) throws IOException {
+        final short tag = getIfd0TagKey(tagId);
+        DataInputStream in = new DataInputStream(is);
+        try {
+            if (in.readShort() != JpegHeader.SOI) {
+                return null;
+            }
+            short marker = in.readShort();
+            while (marker != JpegHeader.EOI && !JpegHeader.isSofMarker(marker)) {
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == JpegHeader.APP1 && length >= EXIF_PREFIX_SIZE + TIFF_HEADER_SIZE) {
+                    byte[] prefix = new byte[EXIF_PREFIX_SIZE];
+                    in.readFully(prefix);
+                    length -= EXIF_PREFIX_SIZE;
+                    if (isExifPrefix(ByteBuffer.wrap(prefix))) {
+                        byte[] tiff = new byte[length];
+                        in.readFully(tiff);
+                        return getIntValue(ByteBuffer.wrap(tiff), tag);
+                    }
+                }
+                skipFully(in, length);
+                marker = in.readShort();
+            }
+            return null;
+        } catch (EOFException e) {
+            // Truncated before the exif data, if there is any.
+            return null;
+        }
+    }
+
+    private static short getIfd0TagKey(int tagId) {
+        if (ExifInterface.getTrueIfd(tagId) != IfdId.TYPE_IFD_0) {
+            throw new IllegalArgumentException("not an IFD0 tag: " + tagId);
+        }
+        return ExifInterface.getTrueTagKey(tagId);
+    }
+
+    private static int toRotation(Integer orientation) {
+        return orientation != null
+                ? ExifInterface.getRotationForOrientationValue(orientation.shortValue()) : 0;
+    }
+
+    private static boolean isExifPrefix(ByteBuffer buffer) {
+        return buffer.getInt(0) == ExifParser.EXIF_HEADER
+                && buffer.getShort(4) == ExifParser.EXIF_HEADER_TAIL;
+    }
+
+    /**
+     * Looks the tag up in the IFD0 of the TIFF data, which starts at index 0 of the buffer.
+     * All the reads are absolute and bounds checked against the buffer.
+     */
+    private static Integer getIntValue(ByteBuffer tiff, short tag) {
+        final int limit = tiff.limit();
+        if (limit < TIFF_HEADER_SIZE) {
+            return null;
+        }
+        short byteOrder = tiff.getShort(0);
+        if (byteOrder == ExifParser.LITTLE_ENDIAN_TAG) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == ExifParser.BIG_ENDIAN_TAG) {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        if (tiff.getShort(2) != ExifParser.TIFF_HEADER_TAIL) {
+            return null;
+        }
+        long ifd0 = tiff.getInt(4) & 0xffffffffL;
+        if (ifd0 > limit - ExifParser.OFFSET_SIZE) {
+            return null;
+        }
+        int count = tiff.getShort((int) ifd0) & 0xffff;
+        int entry = (int) ifd0 + ExifParser.OFFSET_SIZE;
+        for (int i = 0; i < count && entry <= limit - ExifParser.TAG_SIZE; i++) {
+            if (tiff.getShort(entry) == tag) {
+                // An entry is the tag, the type, the number of components and the value, which
+                // is inline for the single small values.
+                if (tiff.getInt(entry + 4) != 1) {
+                    return null;
+                }
+                switch (tiff.getShort(entry + 2)) {
+                    case ExifTag.TYPE_UNSIGNED_BYTE:
+                        return tiff.get(entry + 8) & 0xff;
+                    case ExifTag.TYPE_UNSIGNED_SHORT:
+                        return tiff.getShort(entry + 8) & 0xffff;
+                    case ExifTag.TYPE_UNSIGNED_LONG:
+                    case ExifTag.TYPE_LONG:
+                        return tiff.getInt(entry + 8);
+                    default:
+                        return null;
+                }
+            }
+            entry += ExifParser.TAG_SIZE;
+        }
+        return null;
+    }
+
+    /**
+     * Reads {@code length} bytes at {@code pos} of the channel into the start of the buffer,
+     * and returns false if the channel ends before.
+     */
+    private static boolean read(FileChannel channel, ByteBuffer buffer, long pos, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -24,9 +24,15 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -38,15 +44,38 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
     private static String TAG = "Launcher3.SavedWallpaperImages";
+    // The number of evicted thumbnails kept around for their memory to be reused
+    private static final int MAX_REUSABLE_THUMBNAILS = 4;
+
+    // Decodes the thumbnails two at a time. Only the tiles in view are queued, and the ones
+    // scrolled out of view before their turn are cancelled and purged from the queue.
+    private static final ThreadPoolExecutor sThumbnailExecutor = new ThreadPoolExecutor(
+            2, 2, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        sThumbnailExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private ImageDb mDb;
     ArrayList<SavedWallpaperTile> mImages;
     Context mContext;
     LayoutInflater mLayoutInflater;
 
+    // The size of the tiles, the thumbnails are decoded no larger than needed to fill them
+    private final int mTileWidth;
+    private final int mTileHeight;
+    // The decoded thumbnails, accessed on the main thread only
+    private final LruCache<ThumbnailDrawable, Bitmap> mThumbnails;
+    // Thumbnails evicted from mThumbnails, guarded by itself
+    private final ArrayList<Bitmap> mReusableThumbnails = new ArrayList<Bitmap>();
+    private final Rect mTempRect = new Rect();
+
     public static class SavedWallpaperTile extends WallpaperPickerActivity.FileWallpaperInfo {
         private int mDbId;
         public SavedWallpaperTile(int dbId, File target, Drawable thumb) {
@@ -67,8 +96,33 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
         mDb = new ImageDb(context);
         mContext = context;
         mLayoutInflater = context.getLayoutInflater();
+        mTileWidth = context.getResources().getDimensionPixelSize(R.dimen.wallpaperThumbnailWidth);
+        mTileHeight =
+                context.getResources().getDimensionPixelSize(R.dimen.wallpaperThumbnailHeight);
+        // Way more than the tiles on screen at once, so that the tiles being looked at are
+        // never evicted.
+        mThumbnails = new LruCache<ThumbnailDrawable, Bitmap>(
+                (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16)) {
+            @Override
+            protected int sizeOf(ThumbnailDrawable key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, ThumbnailDrawable key,
+                    Bitmap oldValue, Bitmap newValue) {
+                if (evicted) {
+                    // Reused once the tile no longer draws it, see ThumbnailDrawable#draw.
+                    key.onEvicted();
+                }
+            }
+        };
     }
 
+    /**
+     * Loads the list of saved images. The thumbnails are only decoded once their tile is in
+     * view, see {@link #updateVisibleThumbnails}.
+     */
     public void loadThumbnailsAndImageIdList() {
         mImages = new ArrayList<SavedWallpaperTile>();
         SQLiteDatabase db = mDb.getReadableDatabase();
@@ -87,16 +141,209 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
             String filename = result.getString(1);
             File file = new File(mContext.getFilesDir(), filename);
 
-            Bitmap thumb = BitmapFactory.decodeFile(file.getAbsolutePath());
-            if (thumb != null) {
-                mImages.add(new SavedWallpaperTile(result.getInt(0),
-                        new File(mContext.getFilesDir(), result.getString(2)),
-                        new BitmapDrawable(thumb)));
-            }
+            mImages.add(new SavedWallpaperTile(result.getInt(0),
+                    new File(mContext.getFilesDir(), result.getString(2)),
+                    new ThumbnailDrawable(file)));
         }
         result.close();
     }
 
+    /**
+     * Starts decoding the thumbnails of the tiles in view, and cancels the decodes not started
+     * yet of the tiles out of view. Must be called on the main thread whenever the tiles are
+     * laid out or scrolled.
+     */
+    public void updateVisibleThumbnails() {
+        if (mImages == null) {
+            return;
+        }
+        boolean cancelled = false;
+        for (SavedWallpaperTile tile : mImages) {
+            final ThumbnailDrawable thumb = (ThumbnailDrawable) tile.mThumb;
+            final View view = tile.mView;
+            thumb.mVisible = view != null && view.isShown() && view.getLocalVisibleRect(mTempRect);
+            if (thumb.mVisible) {
+                if (thumb.mBitmap == null && thumb.mLoadTask == null) {
+                    loadThumbnail(thumb);
+                }
+            } else if (thumb.mLoadTask != null && thumb.mLoadTask.cancel(false)) {
+                thumb.mLoadTask = null;
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            sThumbnailExecutor.purge();
+        }
+    }
+
+    /**
+     * Decodes the thumbnail in the background, no larger than needed to fill a tile.
+     */
+    private void loadThumbnail(final ThumbnailDrawable thumb) {
+        thumb.mLoadTask = new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... args) {
+                final String path = thumb.mFile.getAbsolutePath();
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(path, options);
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    return null;
+                }
+
+                int sampleSize = 1;
+                while (options.outWidth / (sampleSize * 2) >= mTileWidth
+                        && options.outHeight / (sampleSize * 2) >= mTileHeight) {
+                    sampleSize *= 2;
+                }
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = sampleSize;
+                options.inMutable = true;
+                options.inBitmap = obtainReusableThumbnail(
+                        (options.outWidth / sampleSize) * (options.outHeight / sampleSize) * 4);
+                try {
+                    return BitmapFactory.decodeFile(path, options);
+                } catch (IllegalArgumentException e) {
+                    // The thumbnail to reuse did not fit after all.
+                    options.inBitmap = null;
+                    return BitmapFactory.decodeFile(path, options);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap bitmap) {
+                thumb.mLoadTask = null;
+                if (bitmap == null) {
+                    Log.e(TAG, "Error decoding thumbnail " + thumb.mFile);
+                    return;
+                }
+                thumb.setBitmap(bitmap);
+                mThumbnails.put(thumb, bitmap);
+            }
+
+            @Override
+            protected void onCancelled(Bitmap bitmap) {
+                // Scrolled out of view while it was being decoded.
+                if (bitmap != null) {
+                    addReusableThumbnail(bitmap);
+                }
+            }
+        }.executeOnExecutor(sThumbnailExecutor, (Void) null);
+    }
+
+    private void addReusableThumbnail(Bitmap bitmap) {
+        synchronized (mReusableThumbnails) {
+            if (mReusableThumbnails.size() < MAX_REUSABLE_THUMBNAILS) {
+                mReusableThumbnails.add(bitmap);
+            }
+        }
+    }
+
+    private Bitmap obtainReusableThumbnail(int byteCount) {
+        synchronized (mReusableThumbnails) {
+            for (int i = 0; i < mReusableThumbnails.size(); i++) {
+                if (mReusableThumbnails.get(i).getAllocationByteCount() >= byteCount) {
+                    return mReusableThumbnails.remove(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A saved image thumbnail, decoded while its tile is in view and drawn center cropped. Its
+     * intrinsic size is the tile size whether it is decoded yet or not. Drawing it never starts
+     * a decode, tiles out of view are drawn too when the list is recorded for hardware
+     * rendering.
+     */
+    private class ThumbnailDrawable extends Drawable {
+        final File mFile;
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        private final Rect mSrcRect = new Rect();
+        // Only accessed on the main thread.
+        Bitmap mBitmap;
+        AsyncTask<Void, Void, Bitmap> mLoadTask;
+        boolean mVisible;
+        // The evicted thumbnail, until the tile has been redrawn without it.
+        private Bitmap mEvictedBitmap;
+
+        ThumbnailDrawable(File file) {
+            mFile = file;
+        }
+
+        void setBitmap(Bitmap bitmap) {
+            mBitmap = bitmap;
+            invalidateSelf();
+        }
+
+        void onEvicted() {
+            // Decoded again once it is back in view. The tile is redrawn even if it is out of
+            // view, as the recorded display list still draws the bitmap, and the bitmap must
+            // not be reused for another thumbnail until it no longer does.
+            mEvictedBitmap = mBitmap;
+            mBitmap = null;
+            invalidateSelf();
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (mEvictedBitmap != null) {
+                addReusableThumbnail(mEvictedBitmap);
+                mEvictedBitmap = null;
+            }
+            if (mBitmap == null) {
+                return;
+            }
+            Rect bounds = getBounds();
+            if (bounds.isEmpty()) {
+                return;
+            }
+            int width = mBitmap.getWidth();
+            int height = mBitmap.getHeight();
+            if (width * bounds.height() > height * bounds.width()) {
+                int cropWidth = height * bounds.width() / bounds.height();
+                mSrcRect.set((width - cropWidth) / 2, 0, (width + cropWidth) / 2, height);
+            } else {
+                int cropHeight = width * bounds.height() / bounds.width();
+                mSrcRect.set(0, (height - cropHeight) / 2, width, (height + cropHeight) / 2);
+            }
+            canvas.drawBitmap(mBitmap, mSrcRect, bounds, mPaint);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mTileWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mTileHeight;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            mPaint.setAlpha(alpha);
+            invalidateSelf();
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter cf) {
+            mPaint.setColorFilter(cf);
+            invalidateSelf();
+        }
+
+        @Override
+        public void setDither(boolean dither) {
+            mPaint.setDither(dither);
+            invalidateSelf();
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
     public int getCount() {
         return mImages.size();
     }
@@ -111,9 +358,6 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 
     public View getView(int position, View convertView, ViewGroup parent) {
         Drawable thumbDrawable = mImages.get(position).mThumb;
-        if (thumbDrawable == null) {
-            Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
-        }
         return WallpaperPickerActivity.createImageTileView(
                 mLayoutInflater, convertView, parent, thumbDrawable);
     }
@@ -44,7 +44,7 @@ import android.view.WindowManager;
 import android.widget.Toast;
 
 import com.android.gallery3d.common.Utils;
-import com.android.gallery3d.exif.ExifInterface;
+import com.android.gallery3d.exif.ExifProbe;
 import com.android.photos.BitmapRegionTileSource;
 import com.android.photos.BitmapRegionTileSource.BitmapSource;
 
@@ -150,7 +150,7 @@ public class WallpaperCropActivity extends Activity {
             protected Void doInBackground(Void...args) {
                 if (!isCancelled()) {
                     try {
-                        bitmapSource.loadInBackground();
+                        bitmapSource.loadInBackground(context);
                     } catch (SecurityException securityException) {
                         if (isDestroyed()) {
                             // Temporarily granted permissions are revoked when the activity
@@ -277,30 +277,21 @@ public class WallpaperCropActivity extends Activity {
 
     private static int getRotationFromExifHelper(
             String path, Resources res, int resId, Context context, Uri uri) {
-        ExifInterface ei = new ExifInterface();
         InputStream is = null;
         BufferedInputStream bis = null;
         try {
+            // Only the orientation is needed, read it without parsing the whole exif data.
             if (path != null) {
-                ei.readExif(path);
+                return ExifProbe.getRotation(path);
             } else if (uri != null) {
                 is = context.getContentResolver().openInputStream(uri);
-                bis = new BufferedInputStream(is);
-                ei.readExif(bis);
             } else {
                 is = res.openRawResource(resId);
-                bis = new BufferedInputStream(is);
-                ei.readExif(bis);
-            }
-            Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-            if (ori != null) {
-                return ExifInterface.getRotationForOrientationValue(ori.shortValue());
             }
+            bis = new BufferedInputStream(is);
+            return ExifProbe.getRotation(bis);
         } catch (IOException e) {
             Log.w(LOGTAG, "Getting exif data failed", e);
-        } catch (NullPointerException e) {
-            // Sometimes the ExifInterface has an internal NPE if Exif data isn't valid
-            Log.w(LOGTAG, "Getting exif data failed", e);
         } finally {
             Utils.closeSilently(bis);
             Utils.closeSilently(is);
@@ -457,6 +448,9 @@ public class WallpaperCropActivity extends Activity {
     }
 
     protected static class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
+        // The height of the bands the crop is decoded in, in decoded pixels
+        private static final int CROP_BAND_HEIGHT = 256;
+
         Uri mInUri = null;
         Context mContext;
         String mInFilePath;
@@ -662,13 +656,23 @@ public class WallpaperCropActivity extends Activity {
                 }
 
                 Bitmap crop = null;
+                boolean transformed = false;
                 if (decoder != null) {
-                    // Do region decoding to get crop bitmap
-                    BitmapFactory.Options options = new BitmapFactory.Options();
-                    if (scaleDownSampleSize > 1) {
-                        options.inSampleSize = scaleDownSampleSize;
+                    if (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0) {
+                        // Decode the crop straight into the scaled and rotated bitmap, one
+                        // band at a time, rather than decoding all of it first.
+                        crop = decodeCropInBands(decoder, roundedTrueCrop, scaleDownSampleSize,
+                                rotateMatrix);
+                        transformed = crop != null;
+                    }
+                    if (crop == null) {
+                        // Do region decoding to get crop bitmap
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        if (scaleDownSampleSize > 1) {
+                            options.inSampleSize = scaleDownSampleSize;
+                        }
+                        crop = decoder.decodeRegion(roundedTrueCrop, options);
                     }
-                    crop = decoder.decodeRegion(roundedTrueCrop, options);
                     decoder.recycle();
                 }
 
@@ -728,42 +732,11 @@ public class WallpaperCropActivity extends Activity {
                     failure = true;
                     return false;
                 }
-                if (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0) {
-                    float[] dimsAfter = new float[] { crop.getWidth(), crop.getHeight() };
-                    rotateMatrix.mapPoints(dimsAfter);
-                    dimsAfter[0] = Math.abs(dimsAfter[0]);
-                    dimsAfter[1] = Math.abs(dimsAfter[1]);
-
-                    if (!(mOutWidth > 0 && mOutHeight > 0)) {
-                        mOutWidth = Math.round(dimsAfter[0]);
-                        mOutHeight = Math.round(dimsAfter[1]);
-                    }
-
-                    RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
-                    RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
-
-                    Matrix m = new Matrix();
-                    if (mRotation == 0) {
-                        m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-                    } else {
-                        Matrix m1 = new Matrix();
-                        m1.setTranslate(-crop.getWidth() / 2f, -crop.getHeight() / 2f);
-                        Matrix m2 = new Matrix();
-                        m2.setRotate(mRotation);
-                        Matrix m3 = new Matrix();
-                        m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
-                        Matrix m4 = new Matrix();
-                        m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-
-                        Matrix c1 = new Matrix();
-                        c1.setConcat(m2, m1);
-                        Matrix c2 = new Matrix();
-                        c2.setConcat(m4, m3);
-                        m.setConcat(c2, c1);
-                    }
+                if (!transformed && (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0)) {
+                    Matrix m = getOutputMatrix(crop.getWidth(), crop.getHeight(), rotateMatrix);
 
-                    Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(),
-                            (int) returnRect.height(), Bitmap.Config.ARGB_8888);
+                    Bitmap tmp = Bitmap.createBitmap(mOutWidth, mOutHeight,
+                            Bitmap.Config.ARGB_8888);
                     if (tmp != null) {
                         Canvas c = new Canvas(tmp);
                         Paint p = new Paint();
@@ -805,6 +778,94 @@ public class WallpaperCropActivity extends Activity {
             return !failure; // True if any of the operations failed
         }
 
+        /**
+         * Returns the matrix drawing a crop of the given size into the output bitmap, rotated
+         * and scaled to the output size. The output size defaults to the rotated crop size.
+         */
+        private Matrix getOutputMatrix(float cropWidth, float cropHeight, Matrix rotateMatrix) {
+            float[] dimsAfter = new float[] { cropWidth, cropHeight };
+            rotateMatrix.mapPoints(dimsAfter);
+            dimsAfter[0] = Math.abs(dimsAfter[0]);
+            dimsAfter[1] = Math.abs(dimsAfter[1]);
+
+            if (!(mOutWidth > 0 && mOutHeight > 0)) {
+                mOutWidth = Math.round(dimsAfter[0]);
+                mOutHeight = Math.round(dimsAfter[1]);
+            }
+
+            RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
+            RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
+
+            Matrix m = new Matrix();
+            if (mRotation == 0) {
+                m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+            } else {
+                Matrix m1 = new Matrix();
+                m1.setTranslate(-cropWidth / 2f, -cropHeight / 2f);
+                Matrix m2 = new Matrix();
+                m2.setRotate(mRotation);
+                Matrix m3 = new Matrix();
+                m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
+                Matrix m4 = new Matrix();
+                m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+
+                Matrix c1 = new Matrix();
+                c1.setConcat(m2, m1);
+                Matrix c2 = new Matrix();
+                c2.setConcat(m4, m3);
+                m.setConcat(c2, c1);
+            }
+            return m;
+        }
+
+        /**
+         * Decodes the crop in horizontal bands, drawing each band rotated and scaled into the
+         * output bitmap. Only the output bitmap and a band are in memory at once, instead of
+         * the output bitmap and the whole decoded crop. Returns null if a band fails to decode.
+         */
+        private Bitmap decodeCropInBands(BitmapRegionDecoder decoder, Rect crop, int sampleSize,
+                Matrix rotateMatrix) {
+            Matrix m = getOutputMatrix((float) crop.width() / sampleSize,
+                    (float) crop.height() / sampleSize, rotateMatrix);
+            Bitmap out = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
+            Canvas c = new Canvas(out);
+            Paint p = new Paint();
+            p.setFilterBitmap(true);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Rect region = new Rect();
+            RectF bandRect = new RectF();
+            Matrix bandMatrix = new Matrix();
+            int bandHeight = CROP_BAND_HEIGHT * sampleSize;
+            for (int top = crop.top; top < crop.bottom; top += bandHeight) {
+                int bottom = Math.min(top + bandHeight, crop.bottom);
+                // Decode a row more on each side, so that filtering blends across the bands
+                // like it would for the whole crop, and clip the band to its own rows.
+                region.set(crop.left, Math.max(crop.top, top - sampleSize),
+                        crop.right, Math.min(crop.bottom, bottom + sampleSize));
+                Bitmap band = decoder.decodeRegion(region, options);
+                if (band == null) {
+                    out.recycle();
+                    return null;
+                }
+                bandMatrix.set(m);
+                bandMatrix.preTranslate(0, (float) (region.top - crop.top) / sampleSize);
+                bandRect.set(0, (float) (top - crop.top) / sampleSize,
+                        (float) crop.width() / sampleSize,
+                        (float) (bottom - crop.top) / sampleSize);
+                m.mapRect(bandRect);
+
+                c.save();
+                c.clipRect(bandRect);
+                c.drawBitmap(band, bandMatrix, p);
+                c.restore();
+                band.recycle();
+            }
+            c.setBitmap(null);
+            return out;
+        }
+
         @Override
         protected Boolean doInBackground(Void... params) {
             return cropBitmap();
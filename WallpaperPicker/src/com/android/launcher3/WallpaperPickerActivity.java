@@ -241,7 +241,7 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
             BitmapRegionTileSource.ResourceBitmapSource bitmapSource =
                     new BitmapRegionTileSource.ResourceBitmapSource(
                             mResources, mResId, BitmapRegionTileSource.MAX_PREVIEW_SIZE);
-            bitmapSource.loadInBackground();
+            bitmapSource.loadInBackground(a);
             BitmapRegionTileSource source = new BitmapRegionTileSource(a, bitmapSource);
             CropView v = a.getCropView();
             v.setTileSource(source, null);
@@ -497,6 +497,20 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         mSavedImages = new SavedWallpaperImages(this);
         mSavedImages.loadThumbnailsAndImageIdList();
         populateWallpapersFromAdapter(mWallpapersView, mSavedImages, true);
+        // The saved thumbnails are decoded as their tiles come into view.
+        final ViewTreeObserver.OnScrollChangedListener updateSavedThumbnails =
+                new ViewTreeObserver.OnScrollChangedListener() {
+                    public void onScrollChanged() {
+                        mSavedImages.updateVisibleThumbnails();
+                    }
+                };
+        final ViewTreeObserver wallpapersObserver = mWallpapersView.getViewTreeObserver();
+        wallpapersObserver.addOnScrollChangedListener(updateSavedThumbnails);
+        wallpapersObserver.addOnGlobalLayoutListener(new OnGlobalLayoutListener() {
+            public void onGlobalLayout() {
+                mSavedImages.updateVisibleThumbnails();
+            }
+        });
 
         // Populate the live wallpapers
         final LinearLayout liveWallpapersView =
@@ -18,7 +18,9 @@ package com.android.photos;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
@@ -29,19 +31,24 @@ import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
 import com.android.gallery3d.common.BitmapUtils;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.exif.ExifInterface;
+import com.android.gallery3d.exif.ExifProbe;
 import com.android.gallery3d.glrenderer.BasicTexture;
 import com.android.gallery3d.glrenderer.BitmapTexture;
 import com.android.photos.views.TiledImageRenderer;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 
 interface SimpleBitmapRegionDecoder {
     int getWidth();
@@ -144,7 +151,7 @@ class DumbBitmapRegionDecoder implements SimpleBitmapRegionDecoder {
  * {@link BitmapRegionDecoder} to wrap a local file
  */
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
-public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
+public class BitmapRegionTileSource implements TiledImageRenderer.ConcurrentTileSource {
 
     private static final String TAG = "BitmapRegionTileSource";
 
@@ -154,6 +161,23 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     // This must be no larger than half the size of the GL_SIZE_LIMIT
     // due to decodePreview being allowed to be up to 2x the size of the target
     public static final int MAX_PREVIEW_SIZE = GL_SIZE_LIMIT / 2;
+    // BitmapRegionDecoder decodes one region at a time, tiles are decoded concurrently with
+    // up to this many decoders of the same image. Each one holds its own copy of the encoded
+    // image when it was opened from a stream.
+    private static final int MAX_DECODERS = 3;
+
+    // For reading the tiles cached on disk, which does not need a decoder
+    private static final ThreadLocal<BitmapFactory.Options> sCacheOptions =
+            new ThreadLocal<BitmapFactory.Options>() {
+        @Override
+        protected BitmapFactory.Options initialValue() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            options.inTempStorage = new byte[16 * 1024];
+            return options;
+        }
+    };
 
     public static abstract class BitmapSource {
         private SimpleBitmapRegionDecoder mDecoder;
@@ -162,17 +186,20 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         private int mRotation;
         public enum State { NOT_LOADED, LOADED, ERROR_LOADING };
         private State mState = State.NOT_LOADED;
+        private TileDiskCache mTileCache;
+        private String mCacheKey;
         public BitmapSource(int previewSize) {
             mPreviewSize = previewSize;
         }
         public boolean loadInBackground() {
-            ExifInterface ei = new ExifInterface();
-            if (readExif(ei)) {
-                Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-                if (ori != null) {
-                    mRotation = ExifInterface.getRotationForOrientationValue(ori.shortValue());
-                }
-            }
+            return loadInBackground(null);
+        }
+        /**
+         * Loads the source, using the tiles and preview cached on disk for the image if a
+         * context is given.
+         */
+        public boolean loadInBackground(Context context) {
+            mRotation = readRotation();
             mDecoder = loadBitmapRegionDecoder();
             if (mDecoder == null) {
                 mState = State.ERROR_LOADING;
@@ -180,16 +207,31 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             } else {
                 int width = mDecoder.getWidth();
                 int height = mDecoder.getHeight();
+                String identity = context != null ? getIdentity() : null;
+                if (identity != null) {
+                    mCacheKey = TileDiskCache.getKey(identity + ":" + width + "x" + height);
+                    mTileCache = mCacheKey != null ? TileDiskCache.getInstance(context) : null;
+                }
                 if (mPreviewSize != 0) {
                     int previewSize = Math.min(mPreviewSize, MAX_PREVIEW_SIZE);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                    opts.inPreferQualityOverSpeed = true;
-
-                    float scale = (float) previewSize / Math.max(width, height);
-                    opts.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
-                    opts.inJustDecodeBounds = false;
-                    mPreview = loadPreviewBitmap(opts);
+                    if (mTileCache != null) {
+                        BitmapFactory.Options opts = new BitmapFactory.Options();
+                        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                        mPreview = mTileCache.getPreview(mCacheKey, previewSize, opts);
+                    }
+                    if (mPreview == null) {
+                        BitmapFactory.Options opts = new BitmapFactory.Options();
+                        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                        opts.inPreferQualityOverSpeed = true;
+
+                        float scale = (float) previewSize / Math.max(width, height);
+                        opts.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
+                        opts.inJustDecodeBounds = false;
+                        mPreview = loadPreviewBitmap(opts);
+                        if (mPreview != null && mTileCache != null) {
+                            mTileCache.putPreview(mCacheKey, previewSize, mPreview);
+                        }
+                    }
                 }
                 mState = State.LOADED;
                 return true;
@@ -216,6 +258,38 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return mRotation;
         }
 
+        TileDiskCache getTileCache() {
+            return mTileCache;
+        }
+
+        String getCacheKey() {
+            return mCacheKey;
+        }
+
+        /**
+         * Returns a string identifying the image, which changes whenever the image does, or null
+         * if the image should not be cached on disk.
+         */
+        protected String getIdentity() {
+            return null;
+        }
+
+        /**
+         * Returns the rotation of the image from its exif orientation. By default the whole
+         * exif data is read with {@link #readExif}, sources which can be read again as a stream
+         * or file only look up the orientation.
+         */
+        protected int readRotation() {
+            ExifInterface ei = new ExifInterface();
+            if (readExif(ei)) {
+                Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+                if (ori != null) {
+                    return ExifInterface.getRotationForOrientationValue(ori.shortValue());
+                }
+            }
+            return 0;
+        }
+
         public abstract boolean readExif(ExifInterface ei);
         public abstract SimpleBitmapRegionDecoder loadBitmapRegionDecoder();
         public abstract Bitmap loadPreviewBitmap(BitmapFactory.Options options);
@@ -241,6 +315,19 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return BitmapFactory.decodeFile(mPath, options);
         }
         @Override
+        protected String getIdentity() {
+            return getFileIdentity(new File(mPath));
+        }
+        @Override
+        protected int readRotation() {
+            try {
+                return ExifProbe.getRotation(mPath);
+            } catch (IOException e) {
+                Log.w("BitmapRegionTileSource", "reading exif failed", e);
+                return 0;
+            }
+        }
+        @Override
         public boolean readExif(ExifInterface ei) {
             try {
                 ei.readExif(mPath);
@@ -298,6 +385,46 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             }
         }
         @Override
+        protected String getIdentity() {
+            if ("file".equals(mUri.getScheme())) {
+                return getFileIdentity(new File(mUri.getPath()));
+            }
+            // Content uris only get cached when the provider reports the size of the content.
+            Cursor c = null;
+            try {
+                c = mContext.getContentResolver().query(mUri, null, null, null, null);
+                if (c == null || !c.moveToFirst()) {
+                    return null;
+                }
+                int sizeIndex = c.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex < 0 || c.isNull(sizeIndex)) {
+                    return null;
+                }
+                int modifiedIndex = c.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                return "uri:" + mUri + ":" + c.getLong(sizeIndex)
+                        + ":" + (modifiedIndex >= 0 ? c.getLong(modifiedIndex) : 0);
+            } catch (RuntimeException e) {
+                // Providers may not support being queried for the columns.
+                Log.w("BitmapRegionTileSource", "Failed to query URI " + mUri, e);
+                return null;
+            } finally {
+                Utils.closeSilently(c);
+            }
+        }
+        @Override
+        protected int readRotation() {
+            InputStream is = null;
+            try {
+                is = regenerateInputStream();
+                return ExifProbe.getRotation(is);
+            } catch (IOException e) {
+                Log.e("BitmapRegionTileSource", "Failed to read EXIF for URI " + mUri, e);
+                return 0;
+            } finally {
+                Utils.closeSilently(is);
+            }
+        }
+        @Override
         public boolean readExif(ExifInterface ei) {
             InputStream is = null;
             try {
@@ -350,6 +477,36 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             return BitmapFactory.decodeResource(mRes, mResId, options);
         }
         @Override
+        protected String getIdentity() {
+            // The offset and length of the resource in its apk change along with it.
+            AssetFileDescriptor fd = null;
+            try {
+                fd = mRes.openRawResourceFd(mResId);
+                if (fd == null) {
+                    return null;
+                }
+                return "res:" + mRes.getResourceName(mResId) + ":" + fd.getStartOffset()
+                        + ":" + fd.getLength();
+            } catch (Resources.NotFoundException e) {
+                // Compressed resources can't be opened as a file descriptor.
+                return null;
+            } finally {
+                Utils.closeSilently(fd);
+            }
+        }
+        @Override
+        protected int readRotation() {
+            InputStream is = regenerateInputStream();
+            try {
+                return ExifProbe.getRotation(is);
+            } catch (IOException e) {
+                Log.e("BitmapRegionTileSource", "Error reading resource", e);
+                return 0;
+            } finally {
+                Utils.closeSilently(is);
+            }
+        }
+        @Override
         public boolean readExif(ExifInterface ei) {
             try {
                 InputStream is = regenerateInputStream();
@@ -363,30 +520,65 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         }
     }
 
+    /**
+     * A decoder and the state used by getTile with it. Only one thread uses a decoder at a time.
+     */
+    private static class TileDecoder {
+        final SimpleBitmapRegionDecoder decoder;
+        final Rect wantRegion = new Rect();
+        final Rect overlapRegion = new Rect();
+        final BitmapFactory.Options options;
+        Canvas canvas;
+
+        TileDecoder(SimpleBitmapRegionDecoder decoder) {
+            this.decoder = decoder;
+            options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inPreferQualityOverSpeed = true;
+            options.inTempStorage = new byte[16 * 1024];
+        }
+    }
+
+    private static String getFileIdentity(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
     SimpleBitmapRegionDecoder mDecoder;
     int mWidth;
     int mHeight;
     int mTileSize;
     private BasicTexture mPreview;
     private final int mRotation;
-
-    // For use only by getTile
-    private Rect mWantRegion = new Rect();
-    private Rect mOverlapRegion = new Rect();
-    private BitmapFactory.Options mOptions;
-    private Canvas mCanvas;
+    // The cache of the decoded tiles, or null if the image is not cached
+    private final TileDiskCache mTileCache;
+    private final String mCacheKey;
+
+    // Opens the additional decoders
+    private final BitmapSource mSource;
+    // The decoders not in use by getTile, the number of decoders opened or being opened, and
+    // how many can be, guarded by mIdleDecoders
+    private final ArrayList<TileDecoder> mIdleDecoders = new ArrayList<TileDecoder>();
+    private int mDecoderCount;
+    private int mMaxDecoders;
 
     public BitmapRegionTileSource(Context context, BitmapSource source) {
         mTileSize = TiledImageRenderer.suggestedTileSize(context);
         mRotation = source.getRotation();
+        mSource = source;
+        mTileCache = source.getTileCache();
+        mCacheKey = source.getCacheKey();
         mDecoder = source.getBitmapRegionDecoder();
+        // The fallback decoder keeps the whole image in memory, only open that one once.
+        mMaxDecoders = mDecoder == null ? 0
+                : mDecoder instanceof SimpleBitmapRegionDecoderWrapper ? MAX_DECODERS : 1;
         if (mDecoder != null) {
             mWidth = mDecoder.getWidth();
             mHeight = mDecoder.getHeight();
-            mOptions = new BitmapFactory.Options();
-            mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            mOptions.inPreferQualityOverSpeed = true;
-            mOptions.inTempStorage = new byte[16 * 1024];
+            mIdleDecoders.add(new TileDecoder(mDecoder));
+            mDecoderCount = 1;
             int previewSize = source.getPreviewSize();
             if (previewSize != 0) {
                 previewSize = Math.min(previewSize, MAX_PREVIEW_SIZE);
@@ -432,28 +624,118 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         return mRotation;
     }
 
+    @Override
+    public int getMaxConcurrentDecodes() {
+        synchronized (mIdleDecoders) {
+            return mMaxDecoders;
+        }
+    }
+
     @Override
     public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+        // A cached tile is read without waiting for, or opening, a region decoder.
+        if (mTileCache != null) {
+            BitmapFactory.Options options = sCacheOptions.get();
+            options.inBitmap = REUSE_BITMAP ? bitmap : null;
+            Bitmap tile = mTileCache.getTile(mCacheKey, mTileSize, level, x, y, options);
+            options.inBitmap = null;
+            if (tile != null) {
+                return tile;
+            }
+        }
+
+        TileDecoder decoder = acquireDecoder();
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            Bitmap tile = getTile(decoder, level, x, y, bitmap);
+            if (tile != null && mTileCache != null) {
+                mTileCache.putTile(mCacheKey, mTileSize, level, x, y, tile);
+            }
+            return tile;
+        } finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    /**
+     * Returns an idle decoder, opening another one if they are all in use and there are less
+     * than mMaxDecoders. Otherwise waits for one to be released.
+     */
+    private TileDecoder acquireDecoder() {
+        synchronized (mIdleDecoders) {
+            while (mIdleDecoders.isEmpty()) {
+                if (mDecoderCount < mMaxDecoders) {
+                    mDecoderCount++;
+                    break;
+                }
+                if (mDecoderCount == 0) {
+                    return null;
+                }
+                try {
+                    mIdleDecoders.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (!mIdleDecoders.isEmpty()) {
+                return mIdleDecoders.remove(mIdleDecoders.size() - 1);
+            }
+        }
+
+        // Opening a decoder reads the image again, don't hold the lock meanwhile.
+        SimpleBitmapRegionDecoder d = mSource.loadBitmapRegionDecoder();
+        if (d instanceof SimpleBitmapRegionDecoderWrapper) {
+            return new TileDecoder(d);
+        }
+        synchronized (mIdleDecoders) {
+            // Don't try again, and wait for the decoders already open.
+            mDecoderCount--;
+            mMaxDecoders = mDecoderCount;
+            Log.w(TAG, "failed to open another decoder, using " + mDecoderCount);
+            while (mIdleDecoders.isEmpty()) {
+                try {
+                    mIdleDecoders.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mIdleDecoders.remove(mIdleDecoders.size() - 1);
+        }
+    }
+
+    private void releaseDecoder(TileDecoder decoder) {
+        synchronized (mIdleDecoders) {
+            mIdleDecoders.add(decoder);
+            mIdleDecoders.notify();
+        }
+    }
+
+    private Bitmap getTile(TileDecoder decoder, int level, int x, int y, Bitmap bitmap) {
         int tileSize = getTileSize();
         if (!REUSE_BITMAP) {
-            return getTileWithoutReusingBitmap(level, x, y, tileSize);
+            return getTileWithoutReusingBitmap(decoder, level, x, y, tileSize);
         }
 
         int t = tileSize << level;
-        mWantRegion.set(x, y, x + t, y + t);
+        decoder.wantRegion.set(x, y, x + t, y + t);
 
         if (bitmap == null) {
             bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
         }
 
-        mOptions.inSampleSize = (1 << level);
-        mOptions.inBitmap = bitmap;
+        BitmapFactory.Options options = decoder.options;
+        options.inSampleSize = (1 << level);
+        options.inBitmap = bitmap;
 
         try {
-            bitmap = mDecoder.decodeRegion(mWantRegion, mOptions);
+            bitmap = decoder.decoder.decodeRegion(decoder.wantRegion, options);
         } finally {
-            if (mOptions.inBitmap != bitmap && mOptions.inBitmap != null) {
-                mOptions.inBitmap = null;
+            if (options.inBitmap != bitmap && options.inBitmap != null) {
+                options.inBitmap = null;
             }
         }
 
@@ -463,34 +745,36 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
         return bitmap;
     }
 
-    private Bitmap getTileWithoutReusingBitmap(
+    private Bitmap getTileWithoutReusingBitmap(TileDecoder decoder,
             int level, int x, int y, int tileSize) {
 
         int t = tileSize << level;
-        mWantRegion.set(x, y, x + t, y + t);
+        Rect wantRegion = decoder.wantRegion;
+        Rect overlapRegion = decoder.overlapRegion;
+        wantRegion.set(x, y, x + t, y + t);
 
-        mOverlapRegion.set(0, 0, mWidth, mHeight);
+        overlapRegion.set(0, 0, mWidth, mHeight);
 
-        mOptions.inSampleSize = (1 << level);
-        Bitmap bitmap = mDecoder.decodeRegion(mOverlapRegion, mOptions);
+        decoder.options.inSampleSize = (1 << level);
+        Bitmap bitmap = decoder.decoder.decodeRegion(overlapRegion, decoder.options);
 
         if (bitmap == null) {
             Log.w(TAG, "fail in decoding region");
         }
 
-        if (mWantRegion.equals(mOverlapRegion)) {
+        if (wantRegion.equals(overlapRegion)) {
             return bitmap;
         }
 
         Bitmap result = Bitmap.createBitmap(tileSize, tileSize, Config.ARGB_8888);
-        if (mCanvas == null) {
-            mCanvas = new Canvas();
-        }
-        mCanvas.setBitmap(result);
-        mCanvas.drawBitmap(bitmap,
-                (mOverlapRegion.left - mWantRegion.left) >> level,
-                (mOverlapRegion.top - mWantRegion.top) >> level, null);
-        mCanvas.setBitmap(null);
+        if (decoder.canvas == null) {
+            decoder.canvas = new Canvas();
+        }
+        decoder.canvas.setBitmap(result);
+        decoder.canvas.drawBitmap(bitmap,
+                (overlapRegion.left - wantRegion.left) >> level,
+                (overlapRegion.top - wantRegion.top) >> level, null);
+        decoder.canvas.setBitmap(null);
         return result;
     }
 
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On disk cache of the decoded tiles and previews of the images shown by
+ * {@link BitmapRegionTileSource}, so that images opened again are shown at full resolution
+ * without decoding them again. The tiles are stored compressed, one file per tile, and the least
+ * recently used files are evicted once the cache grows over {@link #MAX_BYTES}.
+ *
+ * Opaque tiles are stored as jpegs, so an image opened again shows tiles that went through one
+ * more lossy compression than the first time. They are only shown by the picker, the wallpaper
+ * itself is still cropped from the original image. Storing them losslessly would make them
+ * several times larger, and the cache would hold that many fewer images.
+ *
+ * Images are identified by a key from {@link #getKey}, which must change whenever the image
+ * does. Reads happen on the calling thread. The bitmaps to write are copied on the calling
+ * thread, then compressed and written on a background thread.
+ */
+class TileDiskCache {
+    private static final String TAG = "TileDiskCache";
+
+    private static final String CACHE_DIR = "wallpaper_tiles";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAX_BYTES = 48 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 95;
+    // Writes waiting for the background thread beyond this are dropped, which bounds the memory
+    // held by the copies when tiles are decoded faster than they can be compressed.
+    private static final int MAX_PENDING_WRITES = 8;
+
+    private static TileDiskCache sInstance;
+
+    private final File mDir;
+    private final Handler mWorker;
+    // Only used on the worker thread.
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final Paint mCopyPaint = new Paint();
+
+    // Copies of the tiles being written and the ones free for reuse, guarded by themselves.
+    private final ArrayList<Bitmap> mFreeCopies = new ArrayList<Bitmap>();
+    private int mPendingWrites;
+
+    // The size of the files in the cache by name, least recently used first. Loaded on first
+    // use, guarded by this.
+    private LinkedHashMap<String, Long> mEntries;
+    private long mTotalBytes;
+
+    static synchronized TileDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TileDiskCache(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    private TileDiskCache(File dir) {
+        mDir = dir;
+        HandlerThread thread = new HandlerThread("wallpaper-tile-cache",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorker = new Handler(thread.getLooper());
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Returns the key for the image with the given identity, which should be short enough to
+     * be used in file names.
+     */
+    static String getKey(String identity) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(identity.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached tile, decoded with the options, or null if it is not cached.
+     */
+    Bitmap getTile(String key, int tileSize, int level, int x, int y,
+            BitmapFactory.Options options) {
+        return read(getTileName(key, tileSize, level, x, y), options);
+    }
+
+    /**
+     * Caches the tile. Only a copy is made on the calling thread, the tile can be reused as
+     * soon as this returns.
+     */
+    void putTile(String key, int tileSize, int level, int x, int y, Bitmap tile) {
+        write(getTileName(key, tileSize, level, x, y), tile, true);
+    }
+
+    Bitmap getPreview(String key, int previewSize, BitmapFactory.Options options) {
+        return read(getPreviewName(key, previewSize), options);
+    }
+
+    void putPreview(String key, int previewSize, Bitmap preview) {
+        write(getPreviewName(key, previewSize), preview, false);
+    }
+
+    private static String getTileName(String key, int tileSize, int level, int x, int y) {
+        return key + "_" + tileSize + "_" + level + "_" + x + "_" + y;
+    }
+
+    private static String getPreviewName(String key, int previewSize) {
+        return key + "_preview_" + previewSize;
+    }
+
+    private Bitmap read(final String name, BitmapFactory.Options options) {
+        synchronized (this) {
+            // Also marks the entry as the most recently used.
+            if (getEntriesLocked().get(name) == null) {
+                return null;
+            }
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(new File(mDir, name).getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap to reuse did not fit the cached one.
+            Log.w(TAG, "could not reuse bitmap for " + name, e);
+            return null;
+        }
+        if (bitmap == null) {
+            // The file is gone or corrupted.
+            remove(name);
+            return null;
+        }
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                // Keep the order of use across sessions.
+                new File(mDir, name).setLastModified(System.currentTimeMillis());
+            }
+        });
+        return bitmap;
+    }
+
+    /**
+     * Copies the bitmap and compresses and writes the copy on the worker thread. Copies are
+     * reused for the next writes if reuse is set, which suits tiles as they have the same size.
+     */
+    private void write(final String name, Bitmap bitmap, final boolean reuse) {
+        final Bitmap copy;
+        synchronized (mFreeCopies) {
+            if (mPendingWrites >= MAX_PENDING_WRITES) {
+                return;
+            }
+            mPendingWrites++;
+            copy = reuse ? obtainCopyLocked(bitmap) : null;
+        }
+        final Bitmap toWrite = copy(bitmap, copy);
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mBuffer.reset();
+                    // The images are mostly jpegs already, keep png for the ones with
+                    // transparency.
+                    if (toWrite.compress(toWrite.hasAlpha()
+                            ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                            JPEG_QUALITY, mBuffer)) {
+                        writeFile(name, mBuffer.toByteArray());
+                    }
+                } finally {
+                    synchronized (mFreeCopies) {
+                        mPendingWrites--;
+                        if (reuse && mFreeCopies.size() < MAX_PENDING_WRITES) {
+                            mFreeCopies.add(toWrite);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a free copy with the size and config of the bitmap, or null if there is none.
+     */
+    private Bitmap obtainCopyLocked(Bitmap bitmap) {
+        for (int i = mFreeCopies.size() - 1; i >= 0; i--) {
+            Bitmap copy = mFreeCopies.get(i);
+            if (copy.getWidth() == bitmap.getWidth() && copy.getHeight() == bitmap.getHeight()
+                    && copy.getConfig() == bitmap.getConfig()) {
+                return mFreeCopies.remove(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the pixels of the bitmap into the given copy, or into a new bitmap if it is null.
+     */
+    private Bitmap copy(Bitmap bitmap, Bitmap copy) {
+        if (copy == null) {
+            copy = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                    bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888);
+        }
+        // Called on several decoder threads at once, which only read the paint.
+        new Canvas(copy).drawBitmap(bitmap, 0, 0, mCopyPaint);
+        copy.setHasAlpha(bitmap.hasAlpha());
+        return copy;
+    }
+
+    private void writeFile(String name, byte[] data) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "could not create " + mDir);
+            return;
+        }
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(new File(mDir, name))) {
+                throw new IOException("could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "could not write " + name, e);
+            temp.delete();
+            return;
+        } finally {
+            Utils.closeSilently(out);
+        }
+
+        synchronized (this) {
+            LinkedHashMap<String, Long> entries = getEntriesLocked();
+            Long old = entries.put(name, (long) data.length);
+            mTotalBytes += data.length - (old != null ? old : 0);
+            trimLocked();
+        }
+    }
+
+    private void remove(final String name) {
+        synchronized (this) {
+            Long size = getEntriesLocked().remove(name);
+            if (size != null) {
+                mTotalBytes -= size;
+            }
+        }
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                new File(mDir, name).delete();
+            }
+        });
+    }
+
+    private void trimLocked() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > MAX_BYTES && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mTotalBytes -= eldest.getValue();
+            new File(mDir, eldest.getKey()).delete();
+        }
+    }
+
+    private LinkedHashMap<String, Long> getEntriesLocked() {
+        if (mEntries != null) {
+            return mEntries;
+        }
+        mEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+        mTotalBytes = 0;
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return mEntries;
+        }
+        // Sorting calls lastModified() O(n log n) times, read it once per file.
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.compare(modified[lhs], modified[rhs]);
+            }
+        });
+        for (Integer i : order) {
+            File file = files[i];
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left over by a write that did not complete.
+                file.delete();
+                continue;
+            }
+            long length = file.length();
+            mEntries.put(file.getName(), length);
+            mTotalBytes += length;
+        }
+        return mEntries;
+    }
+}
@@ -33,6 +33,8 @@ import com.android.gallery3d.glrenderer.BasicTexture;
 import com.android.gallery3d.glrenderer.GLCanvas;
 import com.android.gallery3d.glrenderer.UploadedTexture;
 
+import java.util.Arrays;
+
 /**
  * Handles laying out, decoding, and drawing of tiles in GL
  */
@@ -42,6 +44,11 @@ public class TiledImageRenderer {
     private static final String TAG = "TiledImageRenderer";
     private static final int UPLOAD_LIMIT = 1;
 
+    // The number of decoder threads. Only sources implementing ConcurrentTileSource get more
+    // than one tile decoded at a time.
+    private static final int DECODER_COUNT =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
     /*
      *  This is the tile state in the CPU side.
      *  Life of a Tile:
@@ -99,7 +106,11 @@ public class TiledImageRenderer {
     private final Object mQueueLock = new Object();
     private final TileQueue mRecycledQueue = new TileQueue();
     private final TileQueue mUploadQueue = new TileQueue();
-    private final TileQueue mDecodeQueue = new TileQueue();
+    private final TileHeap mDecodeQueue = new TileHeap();
+    // The number of tiles being decoded, and how many the model can decode at once.
+    // Guarded by mQueueLock.
+    private int mDecodingCount;
+    private int mMaxDecodingCount = 1;
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -116,7 +127,7 @@ public class TiledImageRenderer {
     private final Rect mTileRange = new Rect();
     private final Rect mActiveRange[] = {new Rect(), new Rect()};
 
-    private TileDecoder mTileDecoder;
+    private final TileDecoder[] mTileDecoders = new TileDecoder[DECODER_COUNT];
     private boolean mBackgroundTileUploaded;
 
     private int mViewWidth, mViewHeight;
@@ -158,6 +169,17 @@ public class TiledImageRenderer {
         public Bitmap getTile(int level, int x, int y, Bitmap reuse);
     }
 
+    /**
+     * A {@link TileSource} which can decode several tiles at once, from different threads.
+     */
+    public static interface ConcurrentTileSource extends TileSource {
+
+        /**
+         * Returns how many threads may call {@link #getTile} at the same time.
+         */
+        public int getMaxConcurrentDecodes();
+    }
+
     public static int suggestedTileSize(Context context) {
         return isHighResolution(context) ? 512 : 256;
     }
@@ -172,8 +194,10 @@ public class TiledImageRenderer {
 
     public TiledImageRenderer(View parent) {
         mParent = parent;
-        mTileDecoder = new TileDecoder();
-        mTileDecoder.start();
+        for (int i = 0; i < DECODER_COUNT; i++) {
+            mTileDecoders[i] = new TileDecoder();
+            mTileDecoders[i].start();
+        }
     }
 
     public int getViewWidth() {
@@ -229,6 +253,13 @@ public class TiledImageRenderer {
             mTileSize = mModel.getTileSize();
             calculateLevelCount();
         }
+        synchronized (mQueueLock) {
+            mMaxDecodingCount = mModel instanceof ConcurrentTileSource
+                    ? Utils.clamp(((ConcurrentTileSource) mModel).getMaxConcurrentDecodes(),
+                            1, DECODER_COUNT)
+                    : 1;
+            mQueueLock.notifyAll();
+        }
         mLayoutTiles = true;
     }
 
@@ -299,12 +330,12 @@ public class TiledImageRenderer {
         }
 
         synchronized (mQueueLock) {
-            mDecodeQueue.clean();
             mUploadQueue.clean();
             mBackgroundTileUploaded = false;
 
             // Recycle unused tiles: if the level of the active tile is outside the
-            // range [fromLevel, endLevel) or not in the visible range.
+            // range [fromLevel, endLevel) or not in the visible range. This also
+            // drops them from the decode queue.
             int n = mActiveTiles.size();
             for (int i = 0; i < n; i++) {
                 Tile tile = mActiveTiles.valueAt(i);
@@ -317,6 +348,13 @@ public class TiledImageRenderer {
                     recycleTile(tile);
                 }
             }
+
+            // The tiles still queued are decoded in their order for the new position.
+            for (int i = 0, size = mDecodeQueue.size(); i < size; i++) {
+                Tile tile = mDecodeQueue.get(i);
+                tile.mDecodePriority = getDecodePriority(tile);
+            }
+            mDecodeQueue.heapify();
         }
 
         for (int i = fromLevel; i < endLevel; ++i) {
@@ -388,7 +426,9 @@ public class TiledImageRenderer {
     public void freeTextures() {
         mLayoutTiles = true;
 
-        mTileDecoder.finishAndWait();
+        for (TileDecoder decoder : mTileDecoders) {
+            decoder.finishAndWait();
+        }
         synchronized (mQueueLock) {
             mUploadQueue.clean();
             mDecodeQueue.clean();
@@ -482,13 +522,24 @@ public class TiledImageRenderer {
        synchronized (mQueueLock) {
            if (tile.mTileState == STATE_ACTIVATED) {
                tile.mTileState = STATE_IN_QUEUE;
-               if (mDecodeQueue.push(tile)) {
-                   mQueueLock.notifyAll();
-               }
+               tile.mDecodePriority = getDecodePriority(tile);
+               mDecodeQueue.push(tile);
+               mQueueLock.notifyAll();
            }
        }
     }
 
+    // Tiles closer to the center of the view are decoded first, in rings one displayed tile
+    // wide, and within a ring the tiles of the displayed level first.
+    private long getDecodePriority(Tile tile) {
+        int displayLevel = Math.max(0, Math.min(mLevel, mLevelCount - 1));
+        int size = mTileSize << tile.mTileLevel;
+        long dx = Math.abs(tile.mX + size / 2 - mCenterX);
+        long dy = Math.abs(tile.mY + size / 2 - mCenterY);
+        long ring = Math.max(dx, dy) / (mTileSize << displayLevel);
+        return (ring << 8) | Math.abs(tile.mTileLevel - displayLevel);
+    }
+
     private void decodeTile(Tile tile) {
         synchronized (mQueueLock) {
             if (tile.mTileState != STATE_IN_QUEUE) {
@@ -530,6 +581,7 @@ public class TiledImageRenderer {
 
     private void recycleTile(Tile tile) {
         synchronized (mQueueLock) {
+            mDecodeQueue.remove(tile);
             if (tile.mTileState == STATE_DECODING) {
                 tile.mTileState = STATE_RECYCLING;
                 return;
@@ -547,9 +599,6 @@ public class TiledImageRenderer {
         long key = makeTileKey(x, y, level);
         Tile tile = mActiveTiles.get(key);
         if (tile != null) {
-            if (tile.mTileState == STATE_IN_QUEUE) {
-                tile.mTileState = STATE_ACTIVATED;
-            }
             return;
         }
         tile = obtainTile(x, y, level);
@@ -665,6 +714,10 @@ public class TiledImageRenderer {
         public int mY;
         public int mTileLevel;
         public Tile mNext;
+        public boolean mInQueue;
+        // The position of the tile in mDecodeQueue, or -1, and its priority there.
+        public int mHeapIndex = -1;
+        public long mDecodePriority;
         public Bitmap mDecodedTile;
         public volatile int mTileState = STATE_ACTIVATED;
 
@@ -755,34 +808,143 @@ public class TiledImageRenderer {
             Tile tile = mHead;
             if (tile != null) {
                 mHead = tile.mNext;
+                tile.mNext = null;
+                tile.mInQueue = false;
             }
             return tile;
         }
 
         public boolean push(Tile tile) {
-            if (contains(tile)) {
+            if (tile.mInQueue) {
                 Log.w(TAG, "Attempting to add a tile already in the queue!");
                 return false;
             }
             boolean wasEmpty = mHead == null;
             tile.mNext = mHead;
+            tile.mInQueue = true;
             mHead = tile;
             return wasEmpty;
         }
 
-        private boolean contains(Tile tile) {
-            Tile other = mHead;
-            while (other != null) {
-                if (other == tile) {
-                    return true;
-                }
-                other = other.mNext;
+        public void clean() {
+            Tile tile = mHead;
+            while (tile != null) {
+                Tile next = tile.mNext;
+                tile.mNext = null;
+                tile.mInQueue = false;
+                tile = next;
+            }
+            mHead = null;
+        }
+    }
+
+    /**
+     * Binary heap of the tiles to decode, lowest {@link Tile#mDecodePriority} first. Each tile
+     * keeps its index in the heap, so that it can be found and removed without a scan.
+     */
+    private static class TileHeap {
+        private Tile[] mTiles = new Tile[16];
+        private int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        public Tile get(int i) {
+            return mTiles[i];
+        }
+
+        public void push(Tile tile) {
+            if (tile.mHeapIndex >= 0) {
+                Log.w(TAG, "Attempting to add a tile already in the queue!");
+                return;
+            }
+            if (mSize == mTiles.length) {
+                mTiles = Arrays.copyOf(mTiles, mSize * 2);
+            }
+            mTiles[mSize] = tile;
+            siftUp(mSize++);
+        }
+
+        public Tile pop() {
+            if (mSize == 0) {
+                return null;
+            }
+            Tile tile = mTiles[0];
+            removeAt(0);
+            return tile;
+        }
+
+        public void remove(Tile tile) {
+            if (tile.mHeapIndex >= 0) {
+                removeAt(tile.mHeapIndex);
+            }
+        }
+
+        /**
+         * Restores the order of the heap after the priorities of the tiles changed.
+         */
+        public void heapify() {
+            for (int i = mSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
             }
-            return false;
         }
 
         public void clean() {
-            mHead = null;
+            for (int i = 0; i < mSize; i++) {
+                mTiles[i].mHeapIndex = -1;
+                mTiles[i] = null;
+            }
+            mSize = 0;
+        }
+
+        private void removeAt(int i) {
+            Tile tile = mTiles[i];
+            tile.mHeapIndex = -1;
+            Tile last = mTiles[--mSize];
+            mTiles[mSize] = null;
+            if (i < mSize) {
+                mTiles[i] = last;
+                siftDown(i);
+                siftUp(last.mHeapIndex);
+            }
+        }
+
+        private void siftUp(int i) {
+            Tile tile = mTiles[i];
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (mTiles[parent].mDecodePriority <= tile.mDecodePriority) {
+                    break;
+                }
+                mTiles[i] = mTiles[parent];
+                mTiles[i].mHeapIndex = i;
+                i = parent;
+            }
+            mTiles[i] = tile;
+            tile.mHeapIndex = i;
+        }
+
+        private void siftDown(int i) {
+            Tile tile = mTiles[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize
+                        && mTiles[child + 1].mDecodePriority < mTiles[child].mDecodePriority) {
+                    child++;
+                }
+                if (tile.mDecodePriority <= mTiles[child].mDecodePriority) {
+                    break;
+                }
+                mTiles[i] = mTiles[child];
+                mTiles[i].mHeapIndex = i;
+                i = child;
+            }
+            mTiles[i] = tile;
+            tile.mHeapIndex = i;
         }
     }
 
@@ -800,9 +962,12 @@ public class TiledImageRenderer {
         private Tile waitForTile() throws InterruptedException {
             synchronized (mQueueLock) {
                 while (true) {
-                    Tile tile = mDecodeQueue.pop();
-                    if (tile != null) {
-                        return tile;
+                    if (mDecodingCount < mMaxDecodingCount) {
+                        Tile tile = mDecodeQueue.pop();
+                        if (tile != null) {
+                            mDecodingCount++;
+                            return tile;
+                        }
                     }
                     mQueueLock.wait();
                 }
@@ -814,7 +979,14 @@ public class TiledImageRenderer {
             try {
                 while (!isInterrupted()) {
                     Tile tile = waitForTile();
-                    decodeTile(tile);
+                    try {
+                        decodeTile(tile);
+                    } finally {
+                        synchronized (mQueueLock) {
+                            mDecodingCount--;
+                            mQueueLock.notifyAll();
+                        }
+                    }
                 }
             } catch (InterruptedException ex) {
                 // We were finished
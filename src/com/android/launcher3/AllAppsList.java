@@ -25,6 +25,7 @@ import com.android.launcher3.compat.UserHandleCompat;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -44,16 +45,22 @@ class AllAppsList {
     /** The list of apps that have been modified since the last notify() call. */
     public ArrayList<AppInfo> modified = new ArrayList<AppInfo>();
 
+    /** Search index over the titles of the apps in data. */
+    public final AppSearchIndex searchIndex;
+
     private IconCache mIconCache;
 
     private AppFilter mAppFilter;
 
     /**
      * Boring constructor.
+     *
+     * @param searchIndexer makes the search keys of the apps, see {@link PrefixSearchIndex}.
      */
-    public AllAppsList(IconCache iconCache, AppFilter appFilter) {
+    public AllAppsList(IconCache iconCache, AppFilter appFilter, Executor searchIndexer) {
         mIconCache = iconCache;
         mAppFilter = appFilter;
+        searchIndex = new AppSearchIndex(searchIndexer);
     }
 
     /**
@@ -71,10 +78,12 @@ class AllAppsList {
         }
         data.add(info);
         added.add(info);
+        searchIndex.add(info);
     }
 
     public void clear() {
         data.clear();
+        searchIndex.clear();
         // TODO: do we clear these too?
         added.clear();
         removed.clear();
@@ -113,6 +122,7 @@ class AllAppsList {
             if (info.user.equals(user) && packageName.equals(component.getPackageName())) {
                 removed.add(info);
                 data.remove(i);
+                searchIndex.remove(info);
             }
         }
         if (clearCache) {
@@ -139,6 +149,7 @@ class AllAppsList {
                         removed.add(applicationInfo);
                         mIconCache.remove(component, user);
                         data.remove(i);
+                        searchIndex.remove(applicationInfo);
                     }
                 }
             }
@@ -155,6 +166,8 @@ class AllAppsList {
                     mIconCache.remove(applicationInfo.componentName, user);
                     mIconCache.getTitleAndIcon(applicationInfo, info, null);
                     modified.add(applicationInfo);
+                    // The title may have changed
+                    searchIndex.add(applicationInfo);
                 }
             }
         } else {
@@ -167,6 +180,7 @@ class AllAppsList {
                     removed.add(applicationInfo);
                     mIconCache.remove(component, user);
                     data.remove(i);
+                    searchIndex.remove(applicationInfo);
                 }
             }
         }
@@ -226,35 +240,19 @@ class AllAppsList {
         return null;
     }
 
-    public AppInfo unreadNumbersChanged(Context context, ComponentName component,
-            int unreadNum) {
-
+    /**
+     * Sets the unread count of the app, returns the app if its count changed or null otherwise.
+     * The icon itself is left alone, the count is drawn over it as a badge.
+     */
+    public AppInfo unreadNumbersChanged(ComponentName component, int unreadNum) {
         if (component == null) { return null; }
 
-        LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
-        UserHandleCompat myUserHandle = UserHandleCompat.myUserHandle();
-        List<LauncherActivityInfoCompat> matches =
-                launcherApps.getActivityList(component.getPackageName(), myUserHandle);
-
-        for (LauncherActivityInfoCompat launcherActivityInfoCompat : matches) {
-            if (component.getPackageName().equals(
-                    launcherActivityInfoCompat.getComponentName().getPackageName())) {
-
-                AppInfo appInfo = findApplicationInfoLocked(
-                        component.getPackageName(), myUserHandle,
-                        component.getClassName());
-
-                if (appInfo == null) {
-                    return null;
-                } else {
-                    appInfo.unreadNum = unreadNum;
-                    mIconCache.remove(appInfo.componentName, myUserHandle);
-                    mIconCache.getTitleAndIcon(appInfo, launcherActivityInfoCompat, null);
-                    return appInfo;
-                }
-            }
+        AppInfo appInfo = findApplicationInfoLocked(component.getPackageName(),
+                UserHandleCompat.myUserHandle(), component.getClassName());
+        if (appInfo == null || appInfo.unreadNum == unreadNum) {
+            return null;
         }
-
-        return null;
+        appInfo.unreadNum = unreadNum;
+        return appInfo;
     }
 }
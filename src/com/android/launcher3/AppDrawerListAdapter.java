@@ -27,6 +27,7 @@ import android.provider.Settings;
 import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -41,10 +42,14 @@ import com.android.launcher3.settings.SettingsProvider;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * AppDrawerListAdapter - list adapter for the vertical app drawer
@@ -76,13 +81,24 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
     private static class Bucket {
         private int index;
         private String startString;
+        // Position of the bucket in the list, see AppItemIndexedInfo.mStringIndex
+        private int sortIndex;
 
         public Bucket(int index, String startString) {
             this.index = index;
             this.startString = startString;
+            this.sortIndex = NUMERIC_OR_SPECIAL_HEADER.equals(startString) ? 0 : index;
         }
     }
 
+    private static final Comparator<Bucket> BUCKET_COMPARATOR = new Comparator<Bucket>() {
+        @Override
+        public int compare(Bucket lhs, Bucket rhs) {
+            int result = Integer.compare(lhs.sortIndex, rhs.sortIndex);
+            return result != 0 ? result : Integer.compare(lhs.index, rhs.index);
+        }
+    };
+
     private static Bucket getBucketForApp(AppInfo app) {
         if (app.hasFlag(AppInfo.REMOTE_APP_FLAG)) {
             return new Bucket(Integer.MIN_VALUE, REMOTE_HEADER);
@@ -119,6 +135,15 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
 
     private ItemAnimatorSet mItemAnimatorSet;
 
+    // The apps of each bucket by bucket index, sorted by name, and the bucket of each app. Kept
+    // so that the buckets touched by an update can be rebuilt without the others.
+    private final SparseArray<ArrayList<AppInfo>> mBucketApps =
+            new SparseArray<ArrayList<AppInfo>>();
+    private final HashMap<AppInfo, Bucket> mAppBuckets = new HashMap<AppInfo, Bucket>();
+    // Scratch lists, kept across calls
+    private final ArrayList<Bucket> mSortedBuckets = new ArrayList<Bucket>();
+    private final ArrayList<AppItemIndexedInfo> mBucketRows = new ArrayList<AppItemIndexedInfo>();
+
     public enum DrawerType {
         Drawer(0),
         Pager(1);
@@ -477,43 +502,155 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
      */
     public void populateByCharacter() {
         mHeaderList.clear();
+        mAppBuckets.clear();
+        for (int i = 0; i < mBucketApps.size(); i++) {
+            mBucketApps.valueAt(i).clear();
+        }
 
-        // Create a clone of AppInfo ArrayList to preserve data
-        HashSet<AppInfo> appsToProcess = (HashSet<AppInfo>) mAllApps.clone();
-        while (!appsToProcess.isEmpty()) {
-            ArrayList<AppInfo> matchingApps = new ArrayList<AppInfo>();
+        // Put every app in its bucket, computing each bucket once
+        for (AppInfo app : mAllApps) {
+            Bucket bucket = addToBucket(app);
+            if (mBucketApps.get(bucket.index).size() == 1) {
+                mSortedBuckets.add(bucket);
+            }
+        }
+        Collections.sort(mSortedBuckets, BUCKET_COMPARATOR);
 
-            AppInfo app = appsToProcess.iterator().next();
-            Bucket bucket = getBucketForApp(app);
+        final Comparator<AppInfo> nameComparator = LauncherModel.getAppNameComparator();
+        for (Bucket bucket : mSortedBuckets) {
+            ArrayList<AppInfo> matchingApps = mBucketApps.get(bucket.index);
 
-            // Find other apps that fall into the same bucket
-            for (Iterator<AppInfo> iter = appsToProcess.iterator(); iter.hasNext(); ) {
-                AppInfo otherApp = iter.next();
-                Bucket otherBucket = getBucketForApp(otherApp);
+            // Sort so they display in alphabetical order
+            Collections.sort(matchingApps, nameComparator);
+            addRows(bucket, matchingApps, mHeaderList);
+        }
+        mSortedBuckets.clear();
+    }
+
+    private Bucket addToBucket(AppInfo app) {
+        Bucket bucket = getBucketForApp(app);
+        ArrayList<AppInfo> matchingApps = mBucketApps.get(bucket.index);
+        if (matchingApps == null) {
+            matchingApps = new ArrayList<AppInfo>();
+            mBucketApps.put(bucket.index, matchingApps);
+        }
+        matchingApps.add(app);
+        mAppBuckets.put(app, bucket);
+        return bucket;
+    }
 
-                if (bucket.index == otherBucket.index) {
-                    matchingApps.add(otherApp);
+    /**
+     * Split app list by number of columns and add rows to the given list
+     */
+    private void addRows(Bucket bucket, ArrayList<AppInfo> matchingApps,
+            ArrayList<AppItemIndexedInfo> rows) {
+        for (int i = 0; i < matchingApps.size(); i += mNumColumns) {
+            int endIndex = Math.min(i + mNumColumns, matchingApps.size());
+            ArrayList<AppInfo> subList =
+                    new ArrayList<AppInfo>(matchingApps.subList(i, endIndex));
+            rows.add(new AppItemIndexedInfo(bucket.startString, bucket.index, subList, i != 0));
+        }
+    }
 
-                    // This app doesn't need to be processed again for other strings
-                    iter.remove();
+    /**
+     * Removes the apps in removed and adds the apps in added, only rebuilding the rows of the
+     * buckets they belong to, and notifies the rows that actually changed.
+     */
+    private void updateBuckets(List<AppInfo> removed, List<AppInfo> added) {
+        final SparseArray<Bucket> dirtyBuckets = new SparseArray<Bucket>();
+        for (AppInfo app : removed) {
+            Bucket bucket = mAppBuckets.remove(app);
+            if (bucket != null) {
+                mBucketApps.get(bucket.index).remove(app);
+                dirtyBuckets.put(bucket.index, bucket);
+            }
+        }
+        mAllApps.removeAll(removed);
+
+        // Apps that were updated in place still need their rows to be rebound
+        final Set<AppInfo> changedApps =
+                Collections.newSetFromMap(new IdentityHashMap<AppInfo, Boolean>());
+        if (added != null) {
+            for (AppInfo app : added) {
+                if (mAllApps.add(app)) {
+                    Bucket bucket = addToBucket(app);
+                    dirtyBuckets.put(bucket.index, bucket);
                 }
+                changedApps.add(app);
             }
+        }
 
-            // Sort so they display in alphabetical order
-            Collections.sort(matchingApps, LauncherModel.getAppNameComparator());
-
-            // Split app list by number of columns and add rows to header list
-            for (int i = 0; i < matchingApps.size(); i += mNumColumns) {
-                int endIndex = Math.min(i + mNumColumns, matchingApps.size());
-                ArrayList<AppInfo> subList =
-                        new ArrayList<AppInfo>(matchingApps.subList(i, endIndex));
-                AppItemIndexedInfo indexedInfo =
-                        new AppItemIndexedInfo(bucket.startString, bucket.index, subList, i != 0);
-                mHeaderList.add(indexedInfo);
+        for (int i = 0; i < dirtyBuckets.size(); i++) {
+            mSortedBuckets.add(dirtyBuckets.valueAt(i));
+        }
+        Collections.sort(mSortedBuckets, BUCKET_COMPARATOR);
+
+        final Comparator<AppInfo> nameComparator = LauncherModel.getAppNameComparator();
+        boolean sectionsChanged = false;
+        int position = 0;
+        for (Bucket bucket : mSortedBuckets) {
+            // Find the current rows of the bucket, the rows are sorted by bucket
+            while (position < mHeaderList.size()
+                    && compareBucket(mHeaderList.get(position), bucket) < 0) {
+                position++;
+            }
+            int oldCount = 0;
+            while (position + oldCount < mHeaderList.size()
+                    && compareBucket(mHeaderList.get(position + oldCount), bucket) == 0) {
+                oldCount++;
+            }
+
+            ArrayList<AppInfo> matchingApps = mBucketApps.get(bucket.index);
+            Collections.sort(matchingApps, nameComparator);
+            addRows(bucket, matchingApps, mBucketRows);
+            final int newCount = mBucketRows.size();
+
+            // Only replace the rows whose content changed, so the others are not rebound
+            final int commonCount = Math.min(oldCount, newCount);
+            for (int i = 0; i < commonCount; i++) {
+                if (!isSameRow(mHeaderList.get(position + i), mBucketRows.get(i), changedApps)) {
+                    mHeaderList.set(position + i, mBucketRows.get(i));
+                    notifyItemChanged(position + i);
+                }
             }
+            if (newCount > oldCount) {
+                mHeaderList.addAll(position + commonCount,
+                        mBucketRows.subList(commonCount, newCount));
+                notifyItemRangeInserted(position + commonCount, newCount - oldCount);
+            } else if (oldCount > newCount) {
+                mHeaderList.subList(position + commonCount, position + oldCount).clear();
+                notifyItemRangeRemoved(position + commonCount, oldCount - newCount);
+            }
+            sectionsChanged |= oldCount == 0 || newCount == 0;
+
+            position += newCount;
+            mBucketRows.clear();
         }
+        mSortedBuckets.clear();
 
-        Collections.sort(mHeaderList);
+        populateSectionHeaders();
+        if (sectionsChanged) {
+            mLauncher.updateScrubber();
+        }
+    }
+
+    private static int compareBucket(AppItemIndexedInfo row, Bucket bucket) {
+        int result = Integer.compare(row.mStringIndex, bucket.sortIndex);
+        return result != 0 ? result : Integer.compare(row.mBucketIndex, bucket.index);
+    }
+
+    private static boolean isSameRow(AppItemIndexedInfo oldRow, AppItemIndexedInfo newRow,
+            Set<AppInfo> changedApps) {
+        if (oldRow.isChild != newRow.isChild || oldRow.mInfo.size() != newRow.mInfo.size()) {
+            return false;
+        }
+        for (int i = 0; i < oldRow.mInfo.size(); i++) {
+            AppInfo app = newRow.mInfo.get(i);
+            if (oldRow.mInfo.get(i) != app || changedApps.contains(app)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void setApps(List<AppInfo> list) {
@@ -536,8 +673,10 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
     }
 
     private void populateSectionHeaders() {
-        if (mSectionHeaders == null || mSectionHeaders.size() != mHeaderList.size()) {
+        if (mSectionHeaders == null) {
             mSectionHeaders = new LinkedHashMap<>();
+        } else {
+            mSectionHeaders.clear();
         }
 
         int sectionIndex = 0;
@@ -558,9 +697,7 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
 
     public void updateApps(List<AppInfo> list) {
         if (!LauncherAppState.isDisableAllApps()) {
-            mAllApps.removeAll(list);
-            mAllApps.addAll(list);
-            reset();
+            updateBuckets(list, list);
         }
     }
 
@@ -568,10 +705,22 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
         updateApps(list);
     }
 
+    /**
+     * Adds a chunk of the apps being loaded, after the first one set with {@link #setApps}.
+     * The protected apps read by setApps are filtered out of it.
+     */
+    public void addAppsChunk(List<AppInfo> list) {
+        if (mProtectedApps == null) {
+            filterProtectedApps(list);
+        } else {
+            removeProtectedApps(list);
+        }
+        updateApps(list);
+    }
+
     public void removeApps(List<AppInfo> appInfos) {
         if (!LauncherAppState.isDisableAllApps()) {
-            mAllApps.removeAll(appInfos);
-            reset();
+            updateBuckets(appInfos, null);
         }
     }
 
@@ -686,7 +835,7 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
                 if (info.customDrawable != null) {
                     d = info.customDrawable;
                 } else {
-                    d = Utilities.createIconDrawable(info.iconBitmap);
+                    d = Utilities.createIconDrawable(mLauncher, info);
                 }
                 d.setBounds(mIconRect);
                 icon.mIcon.setImageDrawable(d);
@@ -793,12 +942,14 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
         private boolean isChild;
         private String mStartString;
         private int mStringIndex;
+        private int mBucketIndex;
         private ArrayList<AppInfo> mInfo;
 
         private AppItemIndexedInfo(String startString, int bucketIndex, ArrayList<AppInfo> info,
                 boolean isChild) {
             this.mStartString = startString;
             this.mStringIndex = bucketIndex;
+            this.mBucketIndex = bucketIndex;
             this.mInfo = info;
             this.isChild = isChild;
 
@@ -868,7 +1019,10 @@ public class AppDrawerListAdapter extends RecyclerView.Adapter<AppDrawerListAdap
 
     private void filterProtectedApps(List<AppInfo> list) {
         updateProtectedAppsList(mLauncher);
+        removeProtectedApps(list);
+    }
 
+    private void removeProtectedApps(List<AppInfo> list) {
         Iterator<AppInfo> iterator = list.iterator();
         while (iterator.hasNext()) {
             AppInfo appInfo = iterator.next();
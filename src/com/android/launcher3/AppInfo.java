@@ -29,6 +29,8 @@ import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -66,6 +68,23 @@ public class AppInfo extends ItemInfo {
 
     int flags = 0;
 
+    /**
+     * The collation key of the title, for the title and collator it was made with.
+     */
+    private static final class SortKey {
+        final CharSequence title;
+        final Collator collator;
+        final CollationKey key;
+
+        SortKey(CharSequence title, Collator collator, CollationKey key) {
+            this.title = title;
+            this.collator = collator;
+            this.key = key;
+        }
+    }
+
+    private volatile SortKey mSortKey;
+
     AppInfo() {
         itemType = LauncherSettings.BaseLauncherColumns.ITEM_TYPE_SHORTCUT;
     }
@@ -138,6 +157,28 @@ public class AppInfo extends ItemInfo {
         iconBitmap = info.iconBitmap;
     }
 
+    /**
+     * Returns the collation key of the trimmed title. The key is computed once and reused until
+     * the title or the collator changes, which makes sorting a list of apps a matter of cheap
+     * byte comparisons.
+     *
+     * @param collator the collator to use, see {@link LauncherModel#getCollator()}.
+     */
+    CollationKey getSortKey(Collator collator) {
+        final CharSequence title = this.title;
+        SortKey sortKey = mSortKey;
+        if (sortKey == null || sortKey.title != title || sortKey.collator != collator) {
+            final String source = title == null ? "" : title.toString().trim();
+            final CollationKey key;
+            synchronized (collator) {
+                key = collator.getCollationKey(source);
+            }
+            sortKey = new SortKey(title, collator, key);
+            mSortKey = sortKey;
+        }
+        return sortKey.key;
+    }
+
     /**
      * Check if this app has a specific flag.
      * @param flag flag to check.
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import com.android.launcher3.locale.LocaleUtils;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Search index over the titles of the apps. Besides the title and the start of each of its
+ * words, apps are found by the name lookup keys of the current locale: full pinyin and pinyin
+ * initials for Chinese, romaji for Japanese.
+ *
+ * The index is kept in sync with {@link AllAppsList} on the worker thread, and can be queried
+ * from any thread. The lookup keys are made on the worker thread too, after the apps are added,
+ * so that queries never wait for the transliterations.
+ */
+class AppSearchIndex extends PrefixSearchIndex<AppInfo> {
+
+    private static final LookupKeyProvider LOCALE_LOOKUP_KEYS = new LookupKeyProvider() {
+        @Override
+        public Iterator<String> getLookupKeys(String name) {
+            return LocaleUtils.getInstance().getNameLookupKeys(name);
+        }
+    };
+
+    AppSearchIndex(Executor indexer) {
+        super(LOCALE_LOOKUP_KEYS, indexer);
+    }
+
+    /**
+     * Indexes the app under its current title, again if it was indexed already.
+     */
+    void add(AppInfo app) {
+        add(app, app.title);
+    }
+}
@@ -38,6 +38,8 @@ public class AppWidgetsRestoredReceiver extends BroadcastReceiver {
      * Updates the app widgets whose id has changed during the restore process.
      */
     static void restoreAppWidgetIds(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
+        // The widgets being restored may still be queued by the model.
+        LauncherModel.flushItemWrites();
         final ContentResolver cr = context.getContentResolver();
         final List<Integer> idsToRemove = new ArrayList<Integer>();
         final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
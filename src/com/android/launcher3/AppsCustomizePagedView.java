@@ -31,10 +31,8 @@ import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Process;
 import android.provider.Settings;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -51,95 +49,13 @@ import com.android.launcher3.DropTarget.DragObject;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.settings.SettingsProvider;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
-/**
- * A simple callback interface which also provides the results of the task.
- */
-interface AsyncTaskCallback {
-    void run(AppsCustomizeAsyncTask task, AsyncTaskPageData data);
-}
-
-/**
- * The data needed to perform either of the custom AsyncTasks.
- */
-class AsyncTaskPageData {
-    enum Type {
-        LoadWidgetPreviewData
-    }
-
-    AsyncTaskPageData(int p, ArrayList<Object> l, int cw, int ch, AsyncTaskCallback bgR,
-            AsyncTaskCallback postR, WidgetPreviewLoader w) {
-        page = p;
-        items = l;
-        generatedImages = new ArrayList<Bitmap>();
-        maxImageWidth = cw;
-        maxImageHeight = ch;
-        doInBackgroundCallback = bgR;
-        postExecuteCallback = postR;
-        widgetPreviewLoader = w;
-    }
-    void cleanup(boolean cancelled) {
-        // Clean up any references to source/generated bitmaps
-        if (generatedImages != null) {
-            if (cancelled) {
-                for (int i = 0; i < generatedImages.size(); i++) {
-                    widgetPreviewLoader.recycleBitmap(items.get(i), generatedImages.get(i));
-                }
-            }
-            generatedImages.clear();
-        }
-    }
-    int page;
-    ArrayList<Object> items;
-    ArrayList<Bitmap> sourceImages;
-    ArrayList<Bitmap> generatedImages;
-    int maxImageWidth;
-    int maxImageHeight;
-    AsyncTaskCallback doInBackgroundCallback;
-    AsyncTaskCallback postExecuteCallback;
-    WidgetPreviewLoader widgetPreviewLoader;
-}
-
-/**
- * A generic template for an async task used in AppsCustomize.
- */
-class AppsCustomizeAsyncTask extends AsyncTask<AsyncTaskPageData, Void, AsyncTaskPageData> {
-    AppsCustomizeAsyncTask(int p, AsyncTaskPageData.Type ty) {
-        page = p;
-        threadPriority = Process.THREAD_PRIORITY_DEFAULT;
-        dataType = ty;
-    }
-    @Override
-    protected AsyncTaskPageData doInBackground(AsyncTaskPageData... params) {
-        if (params.length != 1) return null;
-        // Load each of the widget previews in the background
-        params[0].doInBackgroundCallback.run(this, params[0]);
-        return params[0];
-    }
-    @Override
-    protected void onPostExecute(AsyncTaskPageData result) {
-        // All the widget previews are loaded, so we can just callback to inflate the page
-        result.postExecuteCallback.run(this, result);
-    }
-
-    void setThreadPriority(int p) {
-        threadPriority = p;
-    }
-    void syncThreadPriority() {
-        Process.setThreadPriority(threadPriority);
-    }
-
-    // The page that this async task is associated with
-    AsyncTaskPageData.Type dataType;
-    int page;
-    int threadPriority;
-}
-
 /**
  * The Apps/Customize page that displays all the applications, widgets, and shortcuts.
  */
@@ -250,8 +166,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     public static boolean DISABLE_ALL_APPS = false;
 
     // Previews & outlines
-    ArrayList<AppsCustomizeAsyncTask> mRunningTasks;
-    private static final int sPageSleepDelay = 200;
+    private WidgetPreviewScheduler mPreviewScheduler;
 
     private Runnable mInflateWidgetRunnable = null;
     private Runnable mBindWidgetRunnable = null;
@@ -267,10 +182,25 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
     private Toast mWidgetInstructionToast;
 
+    // A loaded preview held back until the launcher transition ends.
+    private static class DeferredWidgetPreview {
+        final int page;
+        final int index;
+        final Object item;
+        final Bitmap preview;
+
+        DeferredWidgetPreview(int page, int index, Object item, Bitmap preview) {
+            this.page = page;
+            this.index = index;
+            this.item = item;
+            this.preview = preview;
+        }
+    }
+
     // Deferral of loading widget previews during launcher transitions
     private boolean mInTransition;
-    private ArrayList<AsyncTaskPageData> mDeferredSyncWidgetPageItems =
-        new ArrayList<AsyncTaskPageData>();
+    private ArrayList<DeferredWidgetPreview> mDeferredWidgetPreviews =
+            new ArrayList<DeferredWidgetPreview>();
     private ArrayList<Runnable> mDeferredPrepareLoadWidgetPreviewsTasks =
         new ArrayList<Runnable>();
 
@@ -337,7 +267,6 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         mWidgets = new ArrayList<Object>();
         mFilteredWidgets = new ArrayList<Object>();
         mIconCache = (LauncherAppState.getInstance()).getIconCache();
-        mRunningTasks = new ArrayList<AppsCustomizeAsyncTask>();
 
         // Save the default widget preview background
         TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.AppsCustomizePagedView, 0, 0);
@@ -405,6 +334,25 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         return mWidgetPreviewLoader;
     }
 
+    private WidgetPreviewScheduler getPreviewScheduler() {
+        if (mPreviewScheduler == null) {
+            mPreviewScheduler = new WidgetPreviewScheduler(getWidgetPreviewLoader(),
+                    new WidgetPreviewScheduler.Callbacks() {
+                        @Override
+                        public void onPreviewLoaded(int page, int index, Object item,
+                                Bitmap preview) {
+                            onWidgetPreviewLoaded(page, index, item, preview);
+                        }
+
+                        @Override
+                        public void onPageLoaded(int page) {
+                            enableHwLayersOnVisiblePages();
+                        }
+                    });
+        }
+        return mPreviewScheduler;
+    }
+
     /** Returns the item index of the center item on this page so that we can restore to this
      *  item index when we rotate. */
     private int getMiddleComponentIndexOnCurrentPage() {
@@ -907,10 +855,10 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     @Override
     public void onLauncherTransitionEnd(Launcher l, boolean animated, boolean toWorkspace) {
         mInTransition = false;
-        for (AsyncTaskPageData d : mDeferredSyncWidgetPageItems) {
-            onSyncWidgetPageItems(d, false);
+        for (DeferredWidgetPreview preview : mDeferredWidgetPreviews) {
+            onWidgetPreviewLoaded(preview.page, preview.index, preview.item, preview.preview);
         }
-        mDeferredSyncWidgetPageItems.clear();
+        mDeferredWidgetPreviews.clear();
         for (Runnable r : mDeferredPrepareLoadWidgetPreviewsTasks) {
             r.run();
         }
@@ -991,6 +939,9 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     public void trimMemory() {
         super.trimMemory();
         clearAllWidgetPages();
+        if (mWidgetPreviewLoader != null) {
+            mWidgetPreviewLoader.trimMemory();
+        }
     }
 
     public void clearAllWidgetPages() {
@@ -1006,21 +957,24 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     }
 
     private void cancelAllTasks() {
-        // Clean up all the async tasks
-        Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
-        while (iter.hasNext()) {
-            AppsCustomizeAsyncTask task = (AppsCustomizeAsyncTask) iter.next();
-            task.cancel(false);
-            iter.remove();
-            mDirtyPageContent.set(task.page, true);
-
-            // We've already preallocated the views for the data to load into, so clear them as well
-            View v = getPageAt(task.page);
-            if (v instanceof PagedViewGridLayout) {
-                ((PagedViewGridLayout) v).removeAllViewsOnPage();
+        // Cancel all the pending previews
+        if (mPreviewScheduler != null) {
+            for (int page : mPreviewScheduler.cancelAll()) {
+                mDirtyPageContent.set(page, true);
+
+                // We've already preallocated the views for the data to load into, so clear them
+                // as well
+                View v = getPageAt(page);
+                if (v instanceof PagedViewGridLayout) {
+                    ((PagedViewGridLayout) v).removeAllViewsOnPage();
+                }
             }
         }
-        mDeferredSyncWidgetPageItems.clear();
+        // The deferred previews were loaded already, give them back.
+        for (DeferredWidgetPreview preview : mDeferredWidgetPreviews) {
+            releaseWidgetPreview(preview.item, preview.preview);
+        }
+        mDeferredWidgetPreviews.clear();
         mDeferredPrepareLoadWidgetPreviewsTasks.clear();
     }
 
@@ -1040,17 +994,9 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     protected void snapToPage(int whichPage, int delta, int duration) {
         super.snapToPage(whichPage, delta, duration);
 
-        // Update the thread priorities given the direction lookahead
-        Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
-        while (iter.hasNext()) {
-            AppsCustomizeAsyncTask task = (AppsCustomizeAsyncTask) iter.next();
-            int pageIndex = task.page;
-            if ((mNextPage > mCurrentPage && pageIndex >= mCurrentPage) ||
-                (mNextPage < mCurrentPage && pageIndex <= mCurrentPage)) {
-                task.setThreadPriority(getThreadPriorityForPage(pageIndex));
-            } else {
-                task.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
-            }
+        // Load the previews of the page we are snapping to first
+        if (mPreviewScheduler != null) {
+            mPreviewScheduler.setTargetPage(getWidgetLoadTargetPage());
         }
     }
 
@@ -1152,101 +1098,42 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     }
 
     /**
-     * A helper to return the priority for loading of the specified widget page.
+     * Returns the page whose widget previews should be loaded first.
      */
-    private int getWidgetPageLoadPriority(int page) {
+    private int getWidgetLoadTargetPage() {
         // If we are snapping to another page, use that index as the target page index
-        int toPage = mCurrentPage;
-        if (mNextPage > -1) {
-            toPage = mNextPage;
-        }
-
-        // We use the distance from the target page as an initial guess of priority, but if there
-        // are no pages of higher priority than the page specified, then bump up the priority of
-        // the specified page.
-        Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
-        int minPageDiff = Integer.MAX_VALUE;
-        while (iter.hasNext()) {
-            AppsCustomizeAsyncTask task = (AppsCustomizeAsyncTask) iter.next();
-            minPageDiff = Math.abs(task.page - toPage);
-        }
-
-        int rawPageDiff = Math.abs(page - toPage);
-        return rawPageDiff - Math.min(rawPageDiff, minPageDiff);
-    }
-    /**
-     * Return the appropriate thread priority for loading for a given page (we give the current
-     * page much higher priority)
-     */
-    private int getThreadPriorityForPage(int page) {
-        // TODO-APPS_CUSTOMIZE: detect number of cores and set thread priorities accordingly below
-        int pageDiff = getWidgetPageLoadPriority(page);
-        if (pageDiff <= 0) {
-            return Process.THREAD_PRIORITY_LESS_FAVORABLE;
-        } else if (pageDiff <= 1) {
-            return Process.THREAD_PRIORITY_LOWEST;
-        } else {
-            return Process.THREAD_PRIORITY_LOWEST;
-        }
-    }
-    private int getSleepForPage(int page) {
-        int pageDiff = getWidgetPageLoadPriority(page);
-        return Math.max(0, pageDiff * sPageSleepDelay);
+        return mNextPage > -1 ? mNextPage : mCurrentPage;
     }
+
     /**
-     * Creates and executes a new AsyncTask to load a page of widget previews.
+     * Queues the previews of a page that are not already in memory. Previews are loaded in
+     * order of distance from the target page, and the ones for pages that fell out of the
+     * window of loaded pages are dropped.
      */
-    private void prepareLoadWidgetPreviewsTask(int page, ArrayList<Object> widgets,
-            int cellWidth, int cellHeight, int cellCountX) {
-
-        // Prune all tasks that are no longer needed
-        Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
-        while (iter.hasNext()) {
-            AppsCustomizeAsyncTask task = (AppsCustomizeAsyncTask) iter.next();
-            int taskPage = task.page;
-            if (taskPage < getAssociatedLowerPageBound(mCurrentPage) ||
-                    taskPage > getAssociatedUpperPageBound(mCurrentPage)) {
-                task.cancel(false);
-                iter.remove();
+    private void prepareLoadWidgetPreviewsTask(int page, ArrayList<Object> widgets) {
+        final WidgetPreviewScheduler scheduler = getPreviewScheduler();
+        scheduler.cancelOutside(getAssociatedLowerPageBound(mCurrentPage),
+                getAssociatedUpperPageBound(mCurrentPage));
+        scheduler.cancelPage(page);
+        scheduler.setTargetPage(getWidgetLoadTargetPage());
+
+        final WidgetPreviewLoader loader = getWidgetPreviewLoader();
+        boolean queued = false;
+        int count = widgets.size();
+        for (int i = 0; i < count; ++i) {
+            Object item = widgets.get(i);
+            Bitmap preview = loader.getCachedPreview(item);
+            if (preview != null) {
+                // Already in memory, don't leave the cell blank until a loader thread gets to it
+                onWidgetPreviewLoaded(page, i, item, preview);
             } else {
-                task.setThreadPriority(getThreadPriorityForPage(taskPage));
+                scheduler.load(page, i, item);
+                queued = true;
             }
         }
-
-        // We introduce a slight delay to order the loading of side pages so that we don't thrash
-        final int sleepMs = getSleepForPage(page);
-        AsyncTaskPageData pageData = new AsyncTaskPageData(page, widgets, cellWidth, cellHeight,
-            new AsyncTaskCallback() {
-                @Override
-                public void run(AppsCustomizeAsyncTask task, AsyncTaskPageData data) {
-                    try {
-                        try {
-                            Thread.sleep(sleepMs);
-                        } catch (Exception e) {}
-                        loadWidgetPreviewsInBackground(task, data);
-                    } finally {
-                        if (task.isCancelled()) {
-                            data.cleanup(true);
-                        }
-                    }
-                }
-            },
-            new AsyncTaskCallback() {
-                @Override
-                public void run(AppsCustomizeAsyncTask task, AsyncTaskPageData data) {
-                    mRunningTasks.remove(task);
-                    if (task.isCancelled()) return;
-                    // do cleanup inside onSyncWidgetPageItems
-                    onSyncWidgetPageItems(data, false);
-                }
-            }, getWidgetPreviewLoader());
-
-        // Ensure that the task is appropriately prioritized and runs in parallel
-        AppsCustomizeAsyncTask t = new AppsCustomizeAsyncTask(page,
-                AsyncTaskPageData.Type.LoadWidgetPreviewData);
-        t.setThreadPriority(getThreadPriorityForPage(page));
-        t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, pageData);
-        mRunningTasks.add(t);
+        if (!queued) {
+            enableHwLayersOnVisiblePages();
+        }
     }
 
     /*
@@ -1364,78 +1251,58 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
                 getWidgetPreviewLoader().setPreviewSize(
                         maxPreviewWidth, maxPreviewHeight, mWidgetSpacingLayout);
                 if (immediate) {
-                    AsyncTaskPageData data = new AsyncTaskPageData(page, items,
-                            maxPreviewWidth, maxPreviewHeight, null, null, getWidgetPreviewLoader());
-                    loadWidgetPreviewsInBackground(null, data);
-                    onSyncWidgetPageItems(data, immediate);
+                    getPreviewScheduler().cancelPage(page);
+                    int count = items.size();
+                    for (int i = 0; i < count; ++i) {
+                        applyWidgetPreview(layout, i, items.get(i),
+                                getWidgetPreviewLoader().getPreview(items.get(i)));
+                    }
+                    enableHwLayersOnVisiblePages();
                 } else {
                     if (mInTransition) {
                         mDeferredPrepareLoadWidgetPreviewsTasks.add(this);
                     } else {
-                        prepareLoadWidgetPreviewsTask(page, items,
-                                maxPreviewWidth, maxPreviewHeight, mWidgetCountX);
+                        prepareLoadWidgetPreviewsTask(page, items);
                     }
                 }
                 layout.setOnLayoutListener(null);
             }
         });
     }
-    private void loadWidgetPreviewsInBackground(AppsCustomizeAsyncTask task,
-            AsyncTaskPageData data) {
-        // loadWidgetPreviewsInBackground can be called without a task to load a set of widget
-        // previews synchronously
-        if (task != null) {
-            // Ensure that this task starts running at the correct priority
-            task.syncThreadPriority();
+    private void onWidgetPreviewLoaded(int page, int index, Object item, Bitmap preview) {
+        if (mInTransition) {
+            mDeferredWidgetPreviews.add(new DeferredWidgetPreview(page, index, item, preview));
+            return;
         }
-
-        // Load each of the widget/shortcut previews
-        ArrayList<Object> items = data.items;
-        ArrayList<Bitmap> images = data.generatedImages;
-        int count = items.size();
-        for (int i = 0; i < count; ++i) {
-            if (task != null) {
-                // Ensure we haven't been cancelled yet
-                if (task.isCancelled()) break;
-                // Before work on each item, ensure that this task is running at the correct
-                // priority
-                task.syncThreadPriority();
-            }
-
-            images.add(getWidgetPreviewLoader().getPreview(items.get(i)));
+        View v = getPageAt(page);
+        if (v instanceof PagedViewGridLayout) {
+            applyWidgetPreview((PagedViewGridLayout) v, index, item, preview);
+        } else {
+            // The page is gone or shows apps now.
+            releaseWidgetPreview(item, preview);
         }
     }
 
-    private void onSyncWidgetPageItems(AsyncTaskPageData data, boolean immediatelySyncItems) {
-        if (!immediatelySyncItems && mInTransition) {
-            mDeferredSyncWidgetPageItems.add(data);
-            return;
+    /**
+     * Gives back a preview from {@link WidgetPreviewLoader} which is not going to be shown.
+     */
+    private void releaseWidgetPreview(Object item, Bitmap preview) {
+        if (preview != null) {
+            getWidgetPreviewLoader().recycleBitmap(item, preview);
         }
-        try {
-            int page = data.page;
-            PagedViewGridLayout layout = (PagedViewGridLayout) getPageAt(page);
-
-            ArrayList<Object> items = data.items;
-            int count = items.size();
-            for (int i = 0; i < count; ++i) {
-                PagedViewWidget widget = (PagedViewWidget) layout.getChildAt(i);
-                if (widget != null) {
-                    Bitmap preview = data.generatedImages.get(i);
-                    widget.applyPreview(new FastBitmapDrawable(preview), i);
-                }
-            }
-
-            enableHwLayersOnVisiblePages();
+    }
 
-            // Update all thread priorities
-            Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
-            while (iter.hasNext()) {
-                AppsCustomizeAsyncTask task = (AppsCustomizeAsyncTask) iter.next();
-                int pageIndex = task.page;
-                task.setThreadPriority(getThreadPriorityForPage(pageIndex));
-            }
-        } finally {
-            data.cleanup(false);
+    /**
+     * Shows the preview in the widget at index, which then owns it, or gives it back if there
+     * is no such widget.
+     */
+    private void applyWidgetPreview(PagedViewGridLayout layout, int index, Object item,
+            Bitmap preview) {
+        PagedViewWidget widget = (PagedViewWidget) layout.getChildAt(index);
+        if (widget != null && preview != null) {
+            widget.applyPreview(new FastBitmapDrawable(preview), index);
+        } else {
+            releaseWidgetPreview(item, preview);
         }
     }
 
@@ -1960,6 +1827,12 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         dumpAppWidgetProviderInfoList(TAG, "mWidgets", mWidgets);
     }
 
+    public void dump(String prefix, PrintWriter writer) {
+        if (mWidgetPreviewLoader != null) {
+            mWidgetPreviewLoader.dump(prefix, writer);
+        }
+    }
+
     private void dumpAppWidgetProviderInfoList(String tag, String label,
             ArrayList<Object> list) {
         Log.d(tag, label + " size=" + list.size());
@@ -1988,7 +1861,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
     /*
      * We load an extra page on each side to prevent flashes from scrolling and loading of the
-     * widget previews in the background with the AsyncTasks.
+     * widget previews in the background with the preview scheduler.
      */
     final static int sLookBehindPageCount = 2;
     final static int sLookAheadPageCount = 2;
@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.Resources;
@@ -33,6 +34,8 @@ import android.view.MotionEvent;
 import android.view.ViewConfiguration;
 import android.widget.TextView;
 
+import com.android.launcher3.compat.UserHandleCompat;
+
 /**
  * TextView that draws a bubble behind the text. We cannot use a LineBackgroundSpan
  * because we want to make the bubble taller than the text and TextView's clip is
@@ -126,8 +129,10 @@ public class BubbleTextView extends TextView {
             iconDrawable = info.customDrawable;
         } else {
             Bitmap b = info.getIcon(iconCache);
-            iconDrawable = Utilities.createIconDrawable(b);
-            ((FastBitmapDrawable) iconDrawable).setGhostModeEnabled(info.isDisabled != 0);
+            FastBitmapDrawable d = Utilities.createIconDrawable(b);
+            d.setGhostModeEnabled(info.isDisabled != 0);
+            d.setBadge(getUnreadBadge(info));
+            iconDrawable = d;
         }
 
         iconDrawable.setBounds(0, 0, grid.iconSizePx, grid.iconSizePx);
@@ -146,6 +151,33 @@ public class BubbleTextView extends TextView {
         }
     }
 
+    /**
+     * Updates the unread badge of the shortcut to the count of the app it launches.
+     */
+    void updateUnreadBadge() {
+        Drawable top = getCompoundDrawables()[1];
+        if (top instanceof FastBitmapDrawable && getTag() instanceof ShortcutInfo) {
+            ((FastBitmapDrawable) top).setBadge(getUnreadBadge((ShortcutInfo) getTag()));
+        }
+    }
+
+    /**
+     * Returns the unread badge of the app the shortcut launches, or null if it has none.
+     */
+    private Bitmap getUnreadBadge(ShortcutInfo info) {
+        // The unread counts are only sent for the apps of the current user.
+        if (info.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                || !UserHandleCompat.myUserHandle().equals(info.user)) {
+            return null;
+        }
+        ComponentName cn = info.getTargetComponent();
+        if (cn == null) {
+            return null;
+        }
+        int unreadNum = LauncherAppState.getInstance().getModel().getUnreadNumber(cn);
+        return UnreadBadgeCache.getBadge(getContext(), unreadNum);
+    }
+
     public void applyFromApplicationInfo(AppInfo info) {
         LauncherAppState app = LauncherAppState.getInstance();
         DeviceProfile grid = app.getDynamicGrid().getDeviceProfile();
@@ -154,7 +186,7 @@ public class BubbleTextView extends TextView {
         if (info.customDrawable != null) {
             topDrawable = info.customDrawable;
         } else {
-            topDrawable = Utilities.createIconDrawable(info.iconBitmap);
+            topDrawable = Utilities.createIconDrawable(getContext(), info);
         }
         topDrawable.setBounds(0, 0, grid.allAppsIconSizePx, grid.allAppsIconSizePx);
         setCompoundDrawables(null, topDrawable, null, null);
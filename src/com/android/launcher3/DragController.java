@@ -89,6 +89,8 @@ public class DragController {
     /** Who can receive drop events */
     private ArrayList<DropTarget> mDropTargets = new ArrayList<DropTarget>();
     private ArrayList<DragListener> mListeners = new ArrayList<DragListener>();
+    // Whether the item writes to the database are held until the end of the drag.
+    private boolean mHoldingItemWrites;
     private DropTarget mFlingToDeleteDropTarget;
 
     /** The window token used as the parent for the DragView. */
@@ -217,6 +219,12 @@ public class DragController {
         }
         mInputMethodManager.hideSoftInputFromWindow(mWindowToken, 0);
 
+        // Apply all the moves of this drag to the database in one go.
+        if (!mHoldingItemWrites) {
+            mHoldingItemWrites = true;
+            LauncherModel.holdItemWrites();
+        }
+
         for (DragListener listener : mListeners) {
             listener.onDragStart(source, dragInfo, dragAction);
         }
@@ -367,6 +375,10 @@ public class DragController {
             }
         }
 
+        if (mHoldingItemWrites) {
+            mHoldingItemWrites = false;
+            LauncherModel.releaseItemWrites();
+        }
         releaseVelocityTracker();
     }
 
@@ -66,6 +66,11 @@ class FastBitmapDrawable extends Drawable {
     private final Bitmap mBitmap;
     private int mAlpha;
 
+    // Unread badge drawn over the top right corner of the icon, see UnreadBadgeCache.
+    private Bitmap mBadge;
+    private final Paint mBadgePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mBadgeRect = new Rect();
+
     private int mBrightness = 0;
     private boolean mGhostModeEnabled = false;
 
@@ -83,6 +88,23 @@ class FastBitmapDrawable extends Drawable {
         final Rect r = getBounds();
         // Draw the bitmap into the bounding rect
         canvas.drawBitmap(mBitmap, null, r, mPaint);
+        if (mBadge != null) {
+            // The badge is sized for the icon bitmap, scale it along with the icon.
+            final float scale = (float) r.width() / mBitmap.getWidth();
+            mBadgeRect.set(r.right - Math.round(mBadge.getWidth() * scale), r.top,
+                    r.right, r.top + Math.round(mBadge.getHeight() * scale));
+            canvas.drawBitmap(mBadge, null, mBadgeRect, mBadgePaint);
+        }
+    }
+
+    /**
+     * Sets the badge drawn over the icon, or null for none.
+     */
+    public void setBadge(Bitmap badge) {
+        if (mBadge != badge) {
+            mBadge = badge;
+            invalidateSelf();
+        }
     }
 
     @Override
@@ -99,12 +121,14 @@ class FastBitmapDrawable extends Drawable {
     public void setAlpha(int alpha) {
         mAlpha = alpha;
         mPaint.setAlpha(alpha);
+        mBadgePaint.setAlpha(alpha);
     }
 
     @Override
     public void setFilterBitmap(boolean filterBitmap) {
         mPaint.setFilterBitmap(filterBitmap);
         mPaint.setAntiAlias(filterBitmap);
+        mBadgePaint.setFilterBitmap(filterBitmap);
     }
 
     public int getAlpha() {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Write-behind queue for the favorites written by {@link LauncherModel}. The writes queued
+ * within a frame, or for as long as the queue is held (for the duration of a drag), are merged
+ * per item id and applied in a single {@link LauncherProvider#applyBatch} transaction.
+ *
+ * All the methods must be called on the worker thread, except for {@link #hold},
+ * {@link #release} and {@link #getPendingInserts} which may be called from any thread. Anything
+ * on the worker thread that reads the favorites back from the db must call {@link #flush} first,
+ * anything on another thread {@link LauncherModel#flushItemWrites}.
+ */
+class FavoritesWriteQueue {
+    private static final String TAG = "Launcher.FavoritesWriteQueue";
+
+    // Writes are applied this long after the first write of a batch, so that all the writes
+    // posted by the UI thread within a frame end up in the same transaction.
+    private static final int FLUSH_DELAY_MS = 16;
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_UPDATE = 1;
+    private static final int OP_DELETE = 2;
+
+    private static final class PendingWrite {
+        int op;
+        ContentValues values;
+        boolean notify;
+
+        PendingWrite(int op, ContentValues values, boolean notify) {
+            this.op = op;
+            this.values = values;
+            this.notify = notify;
+        }
+    }
+
+    private final Handler mWorker;
+    private ContentResolver mResolver;
+
+    // Pending writes by item id, in the order the items were first written. Only changed on the
+    // worker thread, guarded by itself for the readers on other threads. The writes being applied
+    // stay in it until they are in the db.
+    private final LinkedHashMap<Long, PendingWrite> mPending =
+            new LinkedHashMap<Long, PendingWrite>();
+    private int mHoldCount;
+    private int mQueuedCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mHoldCount == 0) {
+                flush();
+            }
+        }
+    };
+
+    FavoritesWriteQueue(Handler worker) {
+        mWorker = worker;
+    }
+
+    void insert(Context context, long id, ContentValues values, boolean notify) {
+        PendingWrite pending;
+        synchronized (mPending) {
+            pending = mPending.get(id);
+        }
+        if (pending != null && pending.op == OP_DELETE) {
+            // Ids are never reused, but keep the delete ordered before the insert just in case.
+            flush();
+        }
+        synchronized (mPending) {
+            mPending.put(id, new PendingWrite(OP_INSERT, new ContentValues(values), notify));
+        }
+        scheduleFlush(context);
+    }
+
+    void update(Context context, long id, ContentValues values) {
+        synchronized (mPending) {
+            PendingWrite pending = mPending.get(id);
+            if (pending == null) {
+                mPending.put(id, new PendingWrite(OP_UPDATE, new ContentValues(values), false));
+            } else if (pending.op != OP_DELETE) {
+                // Fold the update into the pending insert or update of the same row.
+                pending.values.putAll(values);
+            }
+            // else the row is going away, the update would not match anything anyway.
+        }
+        scheduleFlush(context);
+    }
+
+    void delete(Context context, long id) {
+        synchronized (mPending) {
+            PendingWrite pending = mPending.get(id);
+            if (pending != null && pending.op == OP_INSERT) {
+                // The row never made it to the db.
+                mPending.remove(id);
+            } else {
+                mPending.put(id, new PendingWrite(OP_DELETE, null, false));
+            }
+        }
+        scheduleFlush(context);
+    }
+
+    /**
+     * Returns copies of the values of the inserts that are not in the db yet, for the readers
+     * which can't wait for the worker thread to {@link #flush}.
+     */
+    ArrayList<ContentValues> getPendingInserts() {
+        final ArrayList<ContentValues> inserts = new ArrayList<ContentValues>();
+        synchronized (mPending) {
+            for (PendingWrite pending : mPending.values()) {
+                if (pending.op == OP_INSERT) {
+                    inserts.add(new ContentValues(pending.values));
+                }
+            }
+        }
+        return inserts;
+    }
+
+    private void scheduleFlush(Context context) {
+        mResolver = context.getContentResolver();
+        mQueuedCount++;
+        if (mHoldCount == 0) {
+            mWorker.removeCallbacks(mFlushRunnable);
+            mWorker.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Applies the pending writes now.
+     */
+    void flush() {
+        mWorker.removeCallbacks(mFlushRunnable);
+        final ArrayList<Long> ids;
+        synchronized (mPending) {
+            ids = new ArrayList<Long>(mPending.keySet());
+        }
+        if (ids.isEmpty()) {
+            mQueuedCount = 0;
+            return;
+        }
+
+        // Only the worker thread changes mPending, the writes can be read without the lock.
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(ids.size());
+        for (Long id : ids) {
+            final PendingWrite pending = mPending.get(id);
+            switch (pending.op) {
+                case OP_INSERT:
+                    ops.add(ContentProviderOperation.newInsert(pending.notify
+                            ? LauncherSettings.Favorites.CONTENT_URI
+                            : LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION)
+                            .withValues(pending.values).build());
+                    break;
+                case OP_UPDATE:
+                    ops.add(ContentProviderOperation.newUpdate(
+                            LauncherSettings.Favorites.getContentUri(id, false))
+                            .withValues(pending.values).build());
+                    break;
+                case OP_DELETE:
+                    ops.add(ContentProviderOperation.newDelete(
+                            LauncherSettings.Favorites.getContentUri(id, false)).build());
+                    break;
+            }
+        }
+        if (LauncherModel.DEBUG_LOADERS) {
+            Log.d(TAG, "applying " + ops.size() + " writes for " + mQueuedCount + " queued");
+        }
+        mQueuedCount = 0;
+
+        try {
+            mResolver.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (Exception e) {
+            // One failed operation rolls back the whole batch. Apply the writes one by one
+            // instead, so that a single bad row doesn't take the others with it.
+            Log.w(TAG, "Batch of " + ops.size() + " writes failed, applying them one by one", e);
+            for (ContentProviderOperation op : ops) {
+                ArrayList<ContentProviderOperation> single =
+                        new ArrayList<ContentProviderOperation>(1);
+                single.add(op);
+                try {
+                    mResolver.applyBatch(LauncherProvider.AUTHORITY, single);
+                } catch (Exception ex) {
+                    Log.w(TAG, "Could not apply " + op, ex);
+                }
+            }
+        } finally {
+            synchronized (mPending) {
+                mPending.clear();
+            }
+        }
+    }
+
+    /**
+     * Holds the pending writes until {@link #release} is called, typically for the duration of
+     * a drag.
+     */
+    void hold() {
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                mHoldCount++;
+            }
+        });
+    }
+
+    void release() {
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mHoldCount > 0 && --mHoldCount == 0 && hasPendingWrites()) {
+                    mWorker.removeCallbacks(mFlushRunnable);
+                    mWorker.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+                }
+            }
+        });
+    }
+
+    private boolean hasPendingWrites() {
+        synchronized (mPending) {
+            return !mPending.isEmpty();
+        }
+    }
+}
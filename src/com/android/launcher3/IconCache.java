@@ -17,14 +17,21 @@
 package com.android.launcher3;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.ContentValues;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -43,10 +50,18 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
@@ -65,11 +80,50 @@ public class IconCache {
     private static final boolean DEBUG = false;
 
     private static class CacheEntry {
-        public Bitmap icon;
-        public CharSequence title;
-        public CharSequence contentDescription;
+        // Only changes while the entry is cold, readers take a local copy without locking.
+        public volatile Bitmap icon;
+        // Set before the entry is marked loaded and never changed afterwards.
+        public volatile CharSequence title;
+        public volatile CharSequence contentDescription;
+        // Set once the entry is populated. Lookups that find an unloaded entry wait on its
+        // monitor, so each entry is only rendered once however many threads ask for it.
+        public volatile boolean loaded;
+        // Value of mClock when the entry was last returned, used to find entries to trim.
+        public volatile long lastUsed;
+        // The fields below are guarded by the entry's monitor.
+        // The icon while the entry is cold, null otherwise. Cold icons are only weakly held, so
+        // that they are freed once no bound item uses them, and are reused while one does.
+        public WeakReference<Bitmap> coldIcon;
+        // Bytes accounted against the memory budget for this entry.
+        public int size;
+        // Set once the entry has left the cache, so that it is no longer accounted.
+        public boolean removed;
+        // Snapshot of lastUsed taken while trimming, guarded by mTrimLock.
+        public long trimOrder;
+
+        /**
+         * Returns a copy of the entry that is not affected when this entry goes cold.
+         */
+        CacheEntry copy(Bitmap icon) {
+            CacheEntry copy = new CacheEntry();
+            copy.icon = icon;
+            copy.title = title;
+            copy.contentDescription = contentDescription;
+            copy.loaded = true;
+            return copy;
+        }
     }
 
+    private static final Comparator<Entry<CacheKey, CacheEntry>> LRU_ORDER =
+            new Comparator<Entry<CacheKey, CacheEntry>>() {
+        @Override
+        public int compare(Entry<CacheKey, CacheEntry> lhs, Entry<CacheKey, CacheEntry> rhs) {
+            long a = lhs.getValue().trimOrder;
+            long b = rhs.getValue().trimOrder;
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    };
+
     private static class CacheKey {
         public ComponentName componentName;
         public UserHandleCompat user;
@@ -91,14 +145,29 @@ public class IconCache {
         }
     }
 
-    private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons =
-            new HashMap<UserHandleCompat, Bitmap>();
+    private final ConcurrentHashMap<UserHandleCompat, Bitmap> mDefaultIcons =
+            new ConcurrentHashMap<UserHandleCompat, Bitmap>();
     private final Context mContext;
     private final PackageManager mPackageManager;
     private final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<CacheKey, CacheEntry> mCache =
-            new HashMap<CacheKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    // Lookups of loaded entries never lock, see CacheEntry for what guards the rest.
+    private final ConcurrentHashMap<CacheKey, CacheEntry> mCache =
+            new ConcurrentHashMap<CacheKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final AtomicLong mClock = new AtomicLong();
+    // Held by the one thread trimming the cache, other threads skip trimming meanwhile.
+    private final ReentrantLock mTrimLock = new ReentrantLock();
+    private final int mMaxHotBytes;
+    private final AtomicInteger mHotBytes = new AtomicInteger();
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mWaitCount = new AtomicInteger();
+    private final AtomicInteger mDemoteCount = new AtomicInteger();
+    private final AtomicInteger mEvictionCount = new AtomicInteger();
+    // The code of a package is shared by all the users, so is its version.
+    private final ConcurrentHashMap<String, PackageInfo> mPackageInfos =
+            new ConcurrentHashMap<String, PackageInfo>();
+    private final IconDB mIconDb;
     private int mIconDpi;
 
     public IconCache(Context context) {
@@ -110,6 +179,11 @@ public class IconCache {
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = activityManager.getLauncherLargeIconDensity();
+        mIconDb = new IconDB(context);
+
+        final Resources res = context.getResources();
+        mMaxHotBytes = activityManager.getMemoryClass() * 1024 * 1024 / 100
+                * res.getInteger(R.integer.config_iconCacheMemoryPercent);
 
         // need to set mIconDpi before getting default icon
         UserHandleCompat myUser = UserHandleCompat.myUserHandle();
@@ -186,42 +260,58 @@ public class IconCache {
      * Remove any records for the supplied ComponentName.
      */
     public void remove(ComponentName componentName, UserHandleCompat user) {
-        mCache.remove(new CacheKey(componentName, user));
+        CacheEntry entry = mCache.remove(new CacheKey(componentName, user));
+        if (entry != null) {
+            retireEntry(entry);
+        }
     }
 
     /**
      * Remove any records for the supplied package name.
      */
-    public synchronized void remove(String packageName, UserHandleCompat user) {
-        HashSet<CacheKey> forDeletion = new HashSet<CacheKey>();
-        for (CacheKey key: mCache.keySet()) {
+    public void remove(String packageName, UserHandleCompat user) {
+        for (Entry<CacheKey, CacheEntry> e : mCache.entrySet()) {
+            CacheKey key = e.getKey();
             if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
+                    && key.user.equals(user) && mCache.remove(key, e.getValue())) {
+                retireEntry(e.getValue());
             }
         }
-        for (CacheKey condemned: forDeletion) {
-            mCache.remove(condemned);
-        }
+        mPackageInfos.remove(packageName);
+        mIconDb.removePackage(packageName, mUserManager.getSerialNumberForUser(user));
     }
 
     /**
-     * Empty out the cache.
+     * Empty out the cache, including the icons persisted on disk. The disk is cleared on the
+     * worker thread, ahead of any load started after this call.
      */
-    public synchronized void flush() {
-        mCache.clear();
+    public void flush() {
+        flushMemory();
+        mPackageInfos.clear();
+        LauncherModel.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                mIconDb.clear();
+            }
+        });
     }
 
     /**
      * Empty out the cache that aren't of the correct grid size
      */
-    public synchronized void flushInvalidIcons(DeviceProfile grid) {
-        Iterator<Entry<CacheKey, CacheEntry>> it = mCache.entrySet().iterator();
-        while (it.hasNext()) {
-            final CacheEntry e = it.next().getValue();
-            if ((e.icon != null) && (e.icon.getWidth() < grid.iconSizePx
-                    || e.icon.getHeight() < grid.iconSizePx)) {
-                it.remove();
+    public void flushInvalidIcons(DeviceProfile grid) {
+        for (Entry<CacheKey, CacheEntry> e : mCache.entrySet()) {
+            final CacheEntry entry = e.getValue();
+            final boolean invalid;
+            synchronized (entry) {
+                final Bitmap icon = entry.icon;
+                // Cold icons are dropped too, rather than made reachable again to check them.
+                invalid = entry.coldIcon != null || ((icon != null)
+                        && (icon.getWidth() < grid.iconSizePx
+                                || icon.getHeight() < grid.iconSizePx));
+            }
+            if (invalid && mCache.remove(e.getKey(), entry)) {
+                retireEntry(entry);
             }
         }
     }
@@ -229,17 +319,17 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application, LauncherActivityInfoCompat info,
+    public void getTitleAndIcon(AppInfo application, LauncherActivityInfoCompat info,
             HashMap<Object, CharSequence> labelCache) {
-        CacheEntry entry = cacheLocked(application.componentName, info, labelCache,
-                info.getUser(), false, application.unreadNum);
+        CacheEntry entry = getEntry(application.componentName, info, labelCache,
+                info.getUser(), false);
 
         application.title = entry.title;
         application.iconBitmap = entry.icon;
         application.contentDescription = entry.contentDescription;
     }
 
-    public synchronized Bitmap getIcon(Intent intent, UserHandleCompat user) {
+    public Bitmap getIcon(Intent intent, UserHandleCompat user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -248,15 +338,15 @@ public class IconCache {
         }
 
         LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, null, user, true, -1);
+        CacheEntry entry = getEntry(component, launcherActInfo, null, user, true);
         return entry.icon;
     }
 
     /**
      * Fill in "shortcutInfo" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
-                                             UserHandleCompat user, boolean usePkgIcon) {
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+                                UserHandleCompat user, boolean usePkgIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -267,7 +357,7 @@ public class IconCache {
         } else {
             LauncherActivityInfoCompat launcherActInfo =
                     mLauncherApps.resolveActivity(intent, user);
-            CacheEntry entry = cacheLocked(component, launcherActInfo, null, user, usePkgIcon, -1);
+            CacheEntry entry = getEntry(component, launcherActInfo, null, user, usePkgIcon);
             shortcutInfo.setIcon(entry.icon);
             shortcutInfo.title = entry.title;
             shortcutInfo.usingFallbackIcon = isDefaultIcon(entry.icon, user);
@@ -275,21 +365,28 @@ public class IconCache {
     }
 
 
-    public synchronized Bitmap getDefaultIcon(UserHandleCompat user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandleCompat user) {
+        Bitmap icon = mDefaultIcons.get(user);
+        if (icon == null) {
+            synchronized (mDefaultIcons) {
+                icon = mDefaultIcons.get(user);
+                if (icon == null) {
+                    icon = makeDefaultIcon(user);
+                    mDefaultIcons.put(user, icon);
+                }
+            }
         }
-        return mDefaultIcons.get(user);
+        return icon;
     }
 
-    public synchronized Bitmap getIcon(ComponentName component, LauncherActivityInfoCompat info,
-                                       HashMap<Object, CharSequence> labelCache) {
+    public Bitmap getIcon(ComponentName component, LauncherActivityInfoCompat info,
+                          HashMap<Object, CharSequence> labelCache) {
 
         if (info == null || component == null) {
             return null;
         }
 
-        CacheEntry entry = cacheLocked(component, info, labelCache, info.getUser(), false, -1);
+        CacheEntry entry = getEntry(component, info, labelCache, info.getUser(), false);
         return entry.icon;
     }
 
@@ -299,14 +396,97 @@ public class IconCache {
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Loaded entries are returned without locking, concurrent requests for a missing entry
+     * wait for the first one to load it. The returned entry is a copy owned by the caller.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
+    private CacheEntry getEntry(ComponentName componentName, LauncherActivityInfoCompat info,
             HashMap<Object, CharSequence> labelCache, UserHandleCompat user,
-            boolean usePackageIcon, int unreadNum) {
+            boolean usePackageIcon) {
         CacheKey cacheKey = new CacheKey(componentName, user);
+        CacheEntry entry = acquireEntry(cacheKey);
+        entry.lastUsed = mClock.incrementAndGet();
+        final boolean wasLoaded = entry.loaded;
+        Bitmap icon = wasLoaded ? entry.icon : null;
+        if (icon != null) {
+            mHitCount.incrementAndGet();
+            return entry.copy(icon);
+        }
+
+        CacheEntry result;
+        synchronized (entry) {
+            if (entry.loaded && entry.coldIcon != null) {
+                warmUpLocked(entry);
+            }
+            if (!entry.loaded) {
+                mMissCount.incrementAndGet();
+                final long traceStart = LauncherTrace.begin();
+                loadEntryLocked(entry, componentName, info, labelCache, user, usePackageIcon);
+                LauncherTrace.end(LauncherTrace.SPAN_ICON_CACHE_MISS, traceStart, 0);
+                if (!entry.removed) {
+                    trackLocked(entry);
+                }
+                entry.loaded = true;
+            } else {
+                mHitCount.incrementAndGet();
+                if (!wasLoaded) {
+                    // Another thread loaded the entry while we were waiting for it.
+                    mWaitCount.incrementAndGet();
+                }
+            }
+            result = entry.copy(entry.icon);
+        }
+        trimIfNeeded();
+        return result;
+    }
+
+    /**
+     * Returns the entry for the key, adding an unloaded entry if there is none yet.
+     */
+    private CacheEntry acquireEntry(CacheKey cacheKey) {
         CacheEntry entry = mCache.get(cacheKey);
+        if (entry == null) {
+            CacheEntry created = new CacheEntry();
+            entry = mCache.putIfAbsent(cacheKey, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Adds an entry loaded outside of the cache, replacing any previous entry for the key.
+     */
+    private void publishEntry(CacheKey cacheKey, CacheEntry entry) {
+        entry.lastUsed = mClock.incrementAndGet();
+        synchronized (entry) {
+            trackLocked(entry);
+            entry.loaded = true;
+        }
+        CacheEntry old = mCache.put(cacheKey, entry);
+        if (old != null) {
+            retireEntry(old);
+        }
+        trimIfNeeded();
+    }
+
+    /**
+     * Releases the budget held by an entry that was removed from mCache.
+     */
+    private void retireEntry(CacheEntry entry) {
+        synchronized (entry) {
+            untrackLocked(entry);
+            entry.removed = true;
+        }
+    }
 
+    /**
+     * Populates the entry from disk or by rendering it. Callers hold the entry's monitor or own
+     * an entry that is not yet visible to other threads.
+     */
+    private void loadEntryLocked(CacheEntry entry, ComponentName componentName,
+            LauncherActivityInfoCompat info, HashMap<Object, CharSequence> labelCache,
+            UserHandleCompat user, boolean usePackageIcon) {
         boolean isCustomTitle = false;
         String activity = null;
         if (info != null) {
@@ -322,62 +502,81 @@ public class IconCache {
                 isCustomTitle = true;
             }
         }
-        if (entry == null || unreadNum >= 0) {
-            entry = new CacheEntry();
-
-            mCache.put(cacheKey, entry);
+        entry.icon = null;
+        entry.contentDescription = null;
 
-            if (info != null) {
-                ComponentName labelKey = info.getComponentName();
-                if (labelCache != null && labelCache.containsKey(labelKey)) {
-                    if (isCustomTitle) {
-                        entry.title = ((LauncherApplication) mContext)
-                                .getStkAppName(activity);
-                    } else {
-                        entry.title = labelCache.get(labelKey).toString();
-                    }
+        PackageInfo packageInfo = info != null
+                ? getPackageInfo(componentName.getPackageName()) : null;
+        if (packageInfo != null && getEntryFromDb(componentName, user, packageInfo, entry)) {
+            if (isCustomTitle) {
+                entry.title = ((LauncherApplication) mContext).getStkAppName(activity);
+            }
+            if (labelCache != null) {
+                // The label cache is shared by the threads loading all apps.
+                synchronized (labelCache) {
+                    labelCache.put(info.getComponentName(), entry.title);
+                }
+            }
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        } else if (info != null) {
+            ComponentName labelKey = info.getComponentName();
+            CharSequence cachedLabel = null;
+            if (labelCache != null) {
+                synchronized (labelCache) {
+                    cachedLabel = labelCache.get(labelKey);
+                }
+            }
+            if (cachedLabel != null) {
+                if (isCustomTitle) {
+                    entry.title = ((LauncherApplication) mContext)
+                            .getStkAppName(activity);
                 } else {
-                    if (isCustomTitle) {
-                        entry.title = ((LauncherApplication) mContext)
-                                .getStkAppName(activity);
-                    } else {
-                        entry.title = info.getLabel().toString();
-                    }
-                    if (labelCache != null) {
+                    entry.title = cachedLabel.toString();
+                }
+            } else {
+                if (isCustomTitle) {
+                    entry.title = ((LauncherApplication) mContext)
+                            .getStkAppName(activity);
+                } else {
+                    entry.title = info.getLabel().toString();
+                }
+                if (labelCache != null) {
+                    synchronized (labelCache) {
                         labelCache.put(labelKey, entry.title);
                     }
                 }
+            }
 
-                entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
-                entry.icon = Utilities.createIconBitmap(
-                        info.getBadgedIcon(mIconDpi), mContext, unreadNum);
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+            entry.icon = Utilities.createIconBitmap(info.getBadgedIcon(mIconDpi), mContext);
+            if (packageInfo != null && !isCustomTitle) {
+                addEntryToDb(componentName, user, packageInfo, entry);
+            }
+        } else {
+            entry.title = "";
+            Bitmap preloaded = getPreloadedIcon(componentName, user);
+            if (preloaded != null) {
+                if (DEBUG) Log.d(TAG, "using preloaded icon for " +
+                        componentName.toShortString());
+                entry.icon = preloaded;
             } else {
-                entry.title = "";
-                Bitmap preloaded = getPreloadedIcon(componentName, user);
-                if (preloaded != null) {
-                    if (DEBUG) Log.d(TAG, "using preloaded icon for " +
-                            componentName.toShortString());
-                    entry.icon = preloaded;
-                } else {
-                    if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackage(
-                                componentName.getPackageName(), user);
-                        if (packageEntry != null) {
-                            if (DEBUG) Log.d(TAG, "using package default icon for " +
-                                    componentName.toShortString());
-                            entry.icon = packageEntry.icon;
-                            entry.title = packageEntry.title;
-                        }
-                    }
-                    if (entry.icon == null) {
-                        if (DEBUG) Log.d(TAG, "using default icon for " +
+                if (usePackageIcon) {
+                    CacheEntry packageEntry = getEntryForPackage(
+                            componentName.getPackageName(), user);
+                    if (packageEntry != null) {
+                        if (DEBUG) Log.d(TAG, "using package default icon for " +
                                 componentName.toShortString());
-                        entry.icon = getDefaultIcon(user);
+                        entry.icon = packageEntry.icon;
+                        entry.title = packageEntry.title;
                     }
                 }
+                if (entry.icon == null) {
+                    if (DEBUG) Log.d(TAG, "using default icon for " +
+                            componentName.toShortString());
+                    entry.icon = getDefaultIcon(user);
+                }
             }
         }
-        return entry;
     }
 
     /**
@@ -388,13 +587,16 @@ public class IconCache {
             Bitmap icon, CharSequence title) {
         remove(packageName, user);
 
-        CacheEntry entry = getEntryForPackage(packageName, user);
+        ComponentName cn = new ComponentName(packageName, EMPTY_CLASS_NAME);
+        CacheEntry entry = new CacheEntry();
+        loadPackageEntry(entry, cn, user);
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
         }
         if (icon != null) {
             entry.icon = Utilities.createIconBitmap(icon, mContext);
         }
+        publishEntry(new CacheKey(cn, user), entry);
     }
 
     /**
@@ -402,37 +604,296 @@ public class IconCache {
      */
     private CacheEntry getEntryForPackage(String packageName, UserHandleCompat user) {
         ComponentName cn = new ComponentName(packageName, EMPTY_CLASS_NAME);
-        CacheKey cacheKey = new CacheKey(cn, user);
-        CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null) {
-            entry = new CacheEntry();
-            entry.title = "";
-            mCache.put(cacheKey, entry);
+        CacheEntry entry = acquireEntry(new CacheKey(cn, user));
+        entry.lastUsed = mClock.incrementAndGet();
+        synchronized (entry) {
+            if (entry.loaded && entry.coldIcon != null) {
+                warmUpLocked(entry);
+            }
+            if (!entry.loaded) {
+                mMissCount.incrementAndGet();
+                loadPackageEntry(entry, cn, user);
+                if (!entry.removed) {
+                    trackLocked(entry);
+                }
+                entry.loaded = true;
+            } else {
+                mHitCount.incrementAndGet();
+            }
+            return entry.copy(entry.icon);
+        }
+    }
+
+    private void loadPackageEntry(CacheEntry entry, ComponentName cn, UserHandleCompat user) {
+        final String packageName = cn.getPackageName();
+        entry.title = "";
+        entry.icon = null;
+
+        try {
+            ApplicationInfo info = mPackageManager.getApplicationInfo(packageName, 0);
+            entry.title = info.loadLabel(mPackageManager);
+            entry.icon = Utilities.createIconBitmap(info.loadIcon(mPackageManager), mContext);
+        } catch (NameNotFoundException e) {
+            if (DEBUG) Log.d(TAG, "Application not installed " + packageName);
+        }
+
+        if (entry.icon == null) {
+            entry.icon = getPreloadedIcon(cn, user);
+        }
+    }
 
+    /**
+     * Returns the package info used to validate persisted entries, or null if the entries for
+     * this package should not be persisted. The version is the same for every user, so this
+     * also validates the entries of the managed profiles, which are persisted under their own
+     * user serial. GET_UNINSTALLED_PACKAGES finds the packages only installed in a profile.
+     */
+    private PackageInfo getPackageInfo(String packageName) {
+        PackageInfo info = mPackageInfos.get(packageName);
+        if (info == null) {
             try {
-                ApplicationInfo info = mPackageManager.getApplicationInfo(packageName, 0);
-                entry.title = info.loadLabel(mPackageManager);
-                entry.icon = Utilities.createIconBitmap(info.loadIcon(mPackageManager), mContext);
+                info = mPackageManager.getPackageInfo(packageName,
+                        PackageManager.GET_UNINSTALLED_PACKAGES);
             } catch (NameNotFoundException e) {
-                if (DEBUG) Log.d(TAG, "Application not installed " + packageName);
+                if (DEBUG) Log.d(TAG, "Package not found " + packageName);
+                return null;
             }
+            mPackageInfos.put(packageName, info);
+        }
+        return info;
+    }
 
-            if (entry.icon == null) {
-                entry.icon = getPreloadedIcon(cn, user);
+    /**
+     * Returns a string identifying the inputs that affect how an icon and label are rendered.
+     * Entries persisted under a different state are ignored.
+     */
+    private String getSystemState() {
+        return Locale.getDefault().toString() + "," + mIconDpi + ","
+                + Utilities.getIconBitmapSize(mContext);
+    }
+
+    /**
+     * Fills in the entry from the persistent cache if a valid row exists.
+     */
+    private boolean getEntryFromDb(ComponentName componentName, UserHandleCompat user,
+            PackageInfo packageInfo, CacheEntry entry) {
+        Cursor c;
+        try {
+            c = mIconDb.getReadableDatabase().query(IconDB.TABLE_NAME,
+                    new String[] {IconDB.COLUMN_ICON, IconDB.COLUMN_LABEL},
+                    IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ? AND "
+                            + IconDB.COLUMN_LAST_UPDATED + " = ? AND "
+                            + IconDB.COLUMN_VERSION + " = ? AND "
+                            + IconDB.COLUMN_SYSTEM_STATE + " = ?",
+                    new String[] {
+                            componentName.flattenToString(),
+                            Long.toString(mUserManager.getSerialNumberForUser(user)),
+                            Long.toString(packageInfo.lastUpdateTime),
+                            Integer.toString(packageInfo.versionCode),
+                            getSystemState()},
+                    null, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to read icon cache", e);
+            return false;
+        }
+        try {
+            if (c.moveToNext()) {
+                byte[] data = c.getBlob(0);
+                Bitmap icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+                if (icon == null) {
+                    return false;
+                }
+                entry.icon = icon;
+                entry.title = c.getString(1);
+                if (entry.title == null) {
+                    entry.title = "";
+                }
+                return true;
             }
+        } finally {
+            c.close();
+        }
+        return false;
+    }
+
+    /**
+     * Persists the entry so that it can be reused after the process restarts.
+     */
+    private void addEntryToDb(ComponentName componentName, UserHandleCompat user,
+            PackageInfo packageInfo, CacheEntry entry) {
+        byte[] data = ItemInfo.flattenBitmap(entry.icon);
+        if (data == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(IconDB.COLUMN_COMPONENT, componentName.flattenToString());
+        values.put(IconDB.COLUMN_USER, mUserManager.getSerialNumberForUser(user));
+        values.put(IconDB.COLUMN_LAST_UPDATED, packageInfo.lastUpdateTime);
+        values.put(IconDB.COLUMN_VERSION, packageInfo.versionCode);
+        values.put(IconDB.COLUMN_SYSTEM_STATE, getSystemState());
+        values.put(IconDB.COLUMN_ICON, data);
+        values.put(IconDB.COLUMN_LABEL, entry.title.toString());
+        try {
+            mIconDb.getWritableDatabase().insertWithOnConflict(IconDB.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to write icon cache", e);
         }
-        return entry;
     }
 
-    public synchronized HashMap<ComponentName,Bitmap> getAllIcons() {
+    public HashMap<ComponentName,Bitmap> getAllIcons() {
         HashMap<ComponentName,Bitmap> set = new HashMap<ComponentName,Bitmap>();
-        for (CacheKey ck : mCache.keySet()) {
-            final CacheEntry e = mCache.get(ck);
-            set.put(ck.componentName, e.icon);
+        for (Entry<CacheKey, CacheEntry> e : mCache.entrySet()) {
+            final CacheEntry entry = e.getValue();
+            Bitmap icon = entry.icon;
+            if (icon == null) {
+                synchronized (entry) {
+                    if (entry.loaded && entry.coldIcon != null) {
+                        warmUpLocked(entry);
+                    }
+                    icon = entry.icon;
+                }
+            }
+            if (entry.loaded) {
+                set.put(e.getKey().componentName, icon);
+            }
         }
+        trimIfNeeded();
         return set;
     }
 
+    /**
+     * Makes the icon of a cold entry strongly held again. If the icon was freed meanwhile the
+     * entry is marked as not loaded, so that the caller loads it again. Must be called holding
+     * the entry's monitor.
+     */
+    private void warmUpLocked(CacheEntry entry) {
+        Bitmap icon = entry.coldIcon.get();
+        entry.coldIcon = null;
+        if (icon == null) {
+            entry.loaded = false;
+            return;
+        }
+        entry.icon = icon;
+        if (!entry.removed) {
+            trackLocked(entry);
+        }
+    }
+
+    private void trackLocked(CacheEntry entry) {
+        // Default icons are shared by many entries, they are owned by mDefaultIcons. Cold icons
+        // are not accounted, the cache doesn't keep them alive.
+        final Bitmap icon = entry.icon;
+        entry.size = (icon == null || mDefaultIcons.containsValue(icon))
+                ? 0 : icon.getByteCount();
+        mHotBytes.addAndGet(entry.size);
+    }
+
+    private void untrackLocked(CacheEntry entry) {
+        mHotBytes.addAndGet(-entry.size);
+        entry.size = 0;
+    }
+
+    /**
+     * Trims the cache if it went over budget, unless another thread is already trimming it.
+     * Trimming goes a little below the budget so that it doesn't run on every new entry.
+     */
+    private void trimIfNeeded() {
+        if (mHotBytes.get() > mMaxHotBytes && mTrimLock.tryLock()) {
+            try {
+                trim(mMaxHotBytes / 10 * 9);
+            } finally {
+                mTrimLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Makes the least recently used icons cold until the icons held by the cache fit in
+     * maxHotBytes, and evicts the cold entries whose icon was freed. Must be called holding
+     * mTrimLock.
+     */
+    private void trim(int maxHotBytes) {
+        ArrayList<Entry<CacheKey, CacheEntry>> entries =
+                new ArrayList<Entry<CacheKey, CacheEntry>>(mCache.entrySet());
+        for (Entry<CacheKey, CacheEntry> e : entries) {
+            final CacheEntry entry = e.getValue();
+            final boolean freed;
+            synchronized (entry) {
+                freed = entry.coldIcon != null && entry.coldIcon.get() == null;
+            }
+            if (freed && mCache.remove(e.getKey(), entry)) {
+                retireEntry(entry);
+                mEvictionCount.incrementAndGet();
+            }
+        }
+        if (mHotBytes.get() <= maxHotBytes) {
+            return;
+        }
+
+        // lastUsed keeps changing under our feet, sort on a stable copy of it.
+        for (Entry<CacheKey, CacheEntry> e : entries) {
+            e.getValue().trimOrder = e.getValue().lastUsed;
+        }
+        Collections.sort(entries, LRU_ORDER);
+
+        for (Entry<CacheKey, CacheEntry> e : entries) {
+            if (mHotBytes.get() <= maxHotBytes) {
+                break;
+            }
+            final CacheEntry entry = e.getValue();
+            synchronized (entry) {
+                if (!entry.loaded || entry.removed || entry.coldIcon != null
+                        || entry.size == 0) {
+                    continue;
+                }
+                // Icons still used by bound items stay alive and are reused on the next
+                // lookup, the others are freed by the next gc.
+                untrackLocked(entry);
+                entry.coldIcon = new WeakReference<Bitmap>(entry.icon);
+                entry.icon = null;
+                mDemoteCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Releases memory held by the cache in response to {@link Launcher#onTrimMemory}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            flushMemory();
+            return;
+        }
+        mTrimLock.lock();
+        try {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                trim(0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                trim(mMaxHotBytes / 2);
+            }
+        } finally {
+            mTrimLock.unlock();
+        }
+    }
+
+    private void flushMemory() {
+        for (Entry<CacheKey, CacheEntry> e : mCache.entrySet()) {
+            if (mCache.remove(e.getKey(), e.getValue())) {
+                retireEntry(e.getValue());
+                mEvictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "IconCache: entries=" + mCache.size()
+                + " hotBytes=" + mHotBytes.get() + "/" + mMaxHotBytes);
+        writer.println(prefix + "  hits=" + mHitCount.get() + " misses=" + mMissCount.get()
+                + " waits=" + mWaitCount.get() + " demotions=" + mDemoteCount.get()
+                + " evictions=" + mEvictionCount.get());
+    }
+
     /**
      * Pre-load an icon into the persistent cache.
      *
@@ -553,4 +1014,78 @@ public class IconCache {
         String filename = resourceName.replace(File.separatorChar, '_');
         return RESOURCE_FILE_PREFIX + filename;
     }
+
+    /**
+     * Persistent store of rendered icons and labels, keyed by component and user. Rows are only
+     * valid for the package version and system state they were rendered with.
+     */
+    private static final class IconDB extends SQLiteOpenHelper {
+        private final static int DB_VERSION = 1;
+        private final static String TABLE_NAME = "icons";
+        private final static String COLUMN_COMPONENT = "componentName";
+        private final static String COLUMN_USER = "profileId";
+        private final static String COLUMN_LAST_UPDATED = "lastUpdated";
+        private final static String COLUMN_VERSION = "version";
+        private final static String COLUMN_SYSTEM_STATE = "system_state";
+        private final static String COLUMN_ICON = "icon";
+        private final static String COLUMN_LABEL = "label";
+
+        public IconDB(Context context) {
+            super(context, LauncherFiles.APP_ICONS_DB, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_SYSTEM_STATE + " TEXT, " +
+                    COLUMN_ICON + " BLOB, " +
+                    COLUMN_LABEL + " TEXT, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
+                    ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                clearDB(db);
+            }
+        }
+
+        @Override
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                clearDB(db);
+            }
+        }
+
+        private void clearDB(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(db);
+        }
+
+        void removePackage(String packageName, long userSerial) {
+            // Compare the prefix exactly, LIKE would treat '_' in package names as a wildcard.
+            final String prefix = packageName + "/";
+            try {
+                getWritableDatabase().delete(TABLE_NAME,
+                        "substr(" + COLUMN_COMPONENT + ", 1, length(?)) = ? AND "
+                                + COLUMN_USER + " = ?",
+                        new String[] {prefix, prefix, Long.toString(userSerial)});
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Unable to remove " + packageName + " from icon cache", e);
+            }
+        }
+
+        void clear() {
+            try {
+                getWritableDatabase().delete(TABLE_NAME, null, null);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Unable to clear icon cache", e);
+            }
+        }
+    }
 }
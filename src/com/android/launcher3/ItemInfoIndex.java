@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Secondary indexes over the items of {@link LauncherModel#sBgItemsIdMap}: the shortcuts and
+ * widgets by target component and package, and all the items by container. The package index
+ * also covers the package of the shortcuts' icon resource.
+ *
+ * Items must be indexed again with {@link #add} whenever their container or target changes.
+ * Lookups return the items indexed under the key, callers still check the items they get back.
+ *
+ * Not thread safe, guarded by {@link LauncherModel#sBgLock}.
+ */
+class ItemInfoIndex {
+
+    private static final class Keys {
+        ComponentName component;
+        String targetPackage;
+        String iconPackage;
+        long container;
+    }
+
+    private final HashMap<ComponentName, ArrayList<ItemInfo>> mByComponent =
+            new HashMap<ComponentName, ArrayList<ItemInfo>>();
+    private final HashMap<String, ArrayList<ItemInfo>> mByPackage =
+            new HashMap<String, ArrayList<ItemInfo>>();
+    private final HashMap<Long, ArrayList<ItemInfo>> mByContainer =
+            new HashMap<Long, ArrayList<ItemInfo>>();
+    // The keys each item is indexed under, so that it can be removed.
+    private final IdentityHashMap<ItemInfo, Keys> mKeys = new IdentityHashMap<ItemInfo, Keys>();
+
+    /**
+     * Indexes the item, or indexes it again under its current keys if it already is.
+     */
+    void add(ItemInfo item) {
+        if (item == null) {
+            return;
+        }
+        final Keys keys = getKeys(item);
+        final Keys old = mKeys.get(item);
+        if (old != null) {
+            if (sameKeys(old, keys)) {
+                return;
+            }
+            remove(item);
+        }
+        mKeys.put(item, keys);
+        if (keys.component != null) {
+            addToList(mByComponent, keys.component, item);
+        }
+        if (keys.targetPackage != null) {
+            addToList(mByPackage, keys.targetPackage, item);
+        }
+        if (keys.iconPackage != null && !keys.iconPackage.equals(keys.targetPackage)) {
+            addToList(mByPackage, keys.iconPackage, item);
+        }
+        addToList(mByContainer, keys.container, item);
+    }
+
+    void remove(ItemInfo item) {
+        final Keys keys = item != null ? mKeys.remove(item) : null;
+        if (keys == null) {
+            return;
+        }
+        if (keys.component != null) {
+            removeFromList(mByComponent, keys.component, item);
+        }
+        if (keys.targetPackage != null) {
+            removeFromList(mByPackage, keys.targetPackage, item);
+        }
+        if (keys.iconPackage != null) {
+            removeFromList(mByPackage, keys.iconPackage, item);
+        }
+        removeFromList(mByContainer, keys.container, item);
+    }
+
+    void clear() {
+        mByComponent.clear();
+        mByPackage.clear();
+        mByContainer.clear();
+        mKeys.clear();
+    }
+
+    /**
+     * Returns the shortcuts targeting the component and the widgets it provides.
+     */
+    ArrayList<ItemInfo> getByComponent(ComponentName component) {
+        return copyOf(mByComponent.get(component));
+    }
+
+    /**
+     * Returns the shortcuts targeting the package or using one of its icons, and the widgets
+     * it provides.
+     */
+    ArrayList<ItemInfo> getByPackage(String packageName) {
+        return copyOf(mByPackage.get(packageName));
+    }
+
+    /**
+     * Returns the items in the container.
+     */
+    ArrayList<ItemInfo> getByContainer(long container) {
+        return copyOf(mByContainer.get(container));
+    }
+
+    private static Keys getKeys(ItemInfo item) {
+        final Keys keys = new Keys();
+        if (item instanceof ShortcutInfo) {
+            final ShortcutInfo shortcut = (ShortcutInfo) item;
+            keys.component = shortcut.intent != null || shortcut.promisedIntent != null
+                    ? shortcut.getTargetComponent() : null;
+            if (shortcut.iconResource != null) {
+                keys.iconPackage = shortcut.iconResource.packageName;
+            }
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            keys.component = ((LauncherAppWidgetInfo) item).providerName;
+        }
+        if (keys.component != null) {
+            keys.targetPackage = keys.component.getPackageName();
+        }
+        keys.container = item.container;
+        return keys;
+    }
+
+    private static boolean sameKeys(Keys a, Keys b) {
+        return a.container == b.container
+                && (a.component == null ? b.component == null : a.component.equals(b.component))
+                && (a.iconPackage == null
+                        ? b.iconPackage == null : a.iconPackage.equals(b.iconPackage));
+    }
+
+    private static <K> void addToList(HashMap<K, ArrayList<ItemInfo>> map, K key, ItemInfo item) {
+        ArrayList<ItemInfo> items = map.get(key);
+        if (items == null) {
+            items = new ArrayList<ItemInfo>(1);
+            map.put(key, items);
+        }
+        items.add(item);
+    }
+
+    private static <K> void removeFromList(HashMap<K, ArrayList<ItemInfo>> map, K key,
+            ItemInfo item) {
+        final ArrayList<ItemInfo> items = map.get(key);
+        if (items == null) {
+            return;
+        }
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.get(i) == item) {
+                items.remove(i);
+            }
+        }
+        if (items.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static ArrayList<ItemInfo> copyOf(ArrayList<ItemInfo> items) {
+        return items != null ? new ArrayList<ItemInfo>(items) : new ArrayList<ItemInfo>();
+    }
+}
@@ -316,6 +316,15 @@ public class Launcher extends Activity
     protected SearchDropTargetBar mSearchDropTargetBar;
     private AppsCustomizeTabHost mAppsCustomizeTabHost;
     private AppsCustomizePagedView mAppsCustomizeContent;
+    // The all apps chunks bound since the drawer was last updated, see bindAllApplicationsChunk.
+    private final ArrayList<AppInfo> mPendingAllAppsChunks = new ArrayList<AppInfo>();
+    // The number of apps in the chunks bound since the last bindAllApplications.
+    private int mAllAppsChunksCount;
+    private final Runnable mAddPendingAllAppsChunks = new Runnable() {
+        public void run() {
+            addPendingAllAppsChunks();
+        }
+    };
     private boolean mAutoAdvanceRunning = false;
     private AppWidgetHostView mQsb;
 
@@ -1249,6 +1258,7 @@ public class Launcher extends Activity
 
         super.onPause();
         mPaused = true;
+        mStats.flush();
         mDragController.cancelDrag();
         mDragController.resetLastGestureUpTime();
 
@@ -2454,6 +2464,8 @@ public class Launcher extends Activity
 
         mWidgetsToAdvance.clear();
 
+        mStats.close();
+
         TextKeyListener.getInstance().release();
 
         // Disconnect any of the callbacks and drawables associated with ItemInfos on the workspace
@@ -4441,6 +4453,9 @@ public class Launcher extends Activity
                 mAppsCustomizeTabHost.trimMemory();
             }
         }
+        if (mIconCache != null) {
+            mIconCache.trimMemory(level);
+        }
     }
 
     protected void showWorkspace(boolean animated) {
@@ -5293,6 +5308,17 @@ public class Launcher extends Activity
      * Implementation of the method from LauncherModel.Callbacks.
      */
     public void bindAllApplications(final ArrayList<AppInfo> apps) {
+        // When the chunks of the load added all the apps, only the pending ones are left to add.
+        // Otherwise the complete list replaces whatever the chunks added.
+        final boolean chunked = mAllAppsChunksCount > 0 && mAllAppsChunksCount == apps.size();
+        mAllAppsChunksCount = 0;
+        mWorkspace.removeCallbacks(mAddPendingAllAppsChunks);
+        if (chunked) {
+            addPendingAllAppsChunks();
+        } else {
+            mPendingAllAppsChunks.clear();
+        }
+
         if (LauncherAppState.isDisableAllApps()) {
             if (mIntentsOnWorkspaceFromUpgradePath != null) {
                 if (LauncherModel.UPGRADE_USE_MORE_APPS_FOLDER) {
@@ -5307,11 +5333,15 @@ public class Launcher extends Activity
             }
         } else {
             if (mAppDrawerAdapter != null) {
-                mAppDrawerAdapter.setApps(apps);
+                if (!chunked) {
+                    mAppDrawerAdapter.setApps(apps);
+                }
                 mRemoteFolderManager.onSetApps();
             }
             if (mAppsCustomizeContent != null) {
-                mAppsCustomizeContent.setApps(apps);
+                if (!chunked) {
+                    mAppsCustomizeContent.setApps(apps);
+                }
                 mAppsCustomizeContent.onPackagesUpdated(
                         LauncherModel.getSortedWidgetsAndShortcuts(this));
             }
@@ -5321,6 +5351,50 @@ public class Launcher extends Activity
         }
     }
 
+    /**
+     * Adds a chunk of the apps being loaded to the drawer, ahead of the complete list bound with
+     * {@link #bindAllApplications} once loading ends. The first chunk replaces the apps in the
+     * drawer. Only the drawer is updated, the chunks are not app installs.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    public void bindAllApplicationsChunk(final ArrayList<AppInfo> apps, boolean firstChunk) {
+        if (LauncherAppState.isDisableAllApps()) {
+            return;
+        }
+        if (firstChunk) {
+            mAllAppsChunksCount = apps.size();
+            mPendingAllAppsChunks.clear();
+            mWorkspace.removeCallbacks(mAddPendingAllAppsChunks);
+            if (mAppDrawerAdapter != null) {
+                mAppDrawerAdapter.setApps(new ArrayList<AppInfo>(apps));
+            }
+            if (mAppsCustomizeContent != null) {
+                mAppsCustomizeContent.setApps(new ArrayList<AppInfo>(apps));
+            }
+            return;
+        }
+        // The chunks bound within a frame are added to the drawer together.
+        mAllAppsChunksCount += apps.size();
+        if (mPendingAllAppsChunks.isEmpty()) {
+            mWorkspace.postOnAnimation(mAddPendingAllAppsChunks);
+        }
+        mPendingAllAppsChunks.addAll(apps);
+    }
+
+    private void addPendingAllAppsChunks() {
+        if (mPendingAllAppsChunks.isEmpty()) {
+            return;
+        }
+        if (mAppDrawerAdapter != null) {
+            mAppDrawerAdapter.addAppsChunk(new ArrayList<AppInfo>(mPendingAllAppsChunks));
+        }
+        if (mAppsCustomizeContent != null) {
+            mAppsCustomizeContent.addApps(new ArrayList<AppInfo>(mPendingAllAppsChunks));
+        }
+        mPendingAllAppsChunks.clear();
+    }
+
     /**
      * A package was updated.
      *
@@ -5341,6 +5415,10 @@ public class Launcher extends Activity
             mAppsCustomizeContent.updateApps(apps);
             mAppDrawerAdapter.updateApps(apps);
         }
+        // The shortcuts to the apps show their unread counts too.
+        if (mWorkspace != null) {
+            mWorkspace.updateUnreadBadges(apps);
+        }
     }
 
     /**
@@ -5811,7 +5889,12 @@ public class Launcher extends Activity
 
     @Override
     public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && LauncherTrace.DUMP_ARG.equals(args[0])) {
+            LauncherTrace.dumpCsv(writer);
+            return;
+        }
         super.dump(prefix, fd, writer, args);
+        LauncherTrace.dump(prefix, writer);
         synchronized (sDumpLogs) {
             writer.println(" ");
             writer.println("Debug logs: ");
@@ -5819,6 +5902,12 @@ public class Launcher extends Activity
                 writer.println("  " + sDumpLogs.get(i));
             }
         }
+        if (mIconCache != null) {
+            mIconCache.dump(prefix, writer);
+        }
+        if (mAppsCustomizeContent != null) {
+            mAppsCustomizeContent.dump(prefix, writer);
+        }
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
         }
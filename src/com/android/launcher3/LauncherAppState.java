@@ -158,10 +158,9 @@ public class LauncherAppState implements DeviceProfile.DeviceProfileCallbacks {
     private final ContentObserver mFavoritesObserver = new ContentObserver(new Handler()) {
         @Override
         public void onChange(boolean selfChange) {
-            // If the database has ever changed, then we really need to force a reload of the
-            // workspace on the next load
-            mModel.resetLoadedState(false, true);
-            mModel.startLoaderFromBackground();
+            // If the database has changed, bring the workspace up to date with it. This is
+            // done in place when possible, and by reloading the workspace otherwise.
+            mModel.onFavoritesChanged();
         }
     };
 
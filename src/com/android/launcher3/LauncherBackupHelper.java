@@ -196,6 +196,8 @@ public class LauncherBackupHelper implements BackupHelper {
             return;
         }
         Log.v(TAG, "lastBackupTime = " + in.t);
+        // Back up the items written by the model but still queued too.
+        LauncherModel.flushItemWrites();
         mKeys.clear();
         applyJournal(in);
 
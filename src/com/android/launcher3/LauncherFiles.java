@@ -14,6 +14,7 @@ public class LauncherFiles {
 
     private static final String XML = ".xml";
 
+    public static final String APP_ICONS_DB = "app_icons.db";
     public static final String DEFAULT_WALLPAPER_THUMBNAIL = "default_thumb2.jpg";
     public static final String DEFAULT_WALLPAPER_THUMBNAIL_OLD = "default_thumb.jpg";
     public static final String LAUNCHER_DB = "launcher.db";
@@ -27,6 +28,7 @@ public class LauncherFiles {
     public static final String WIDGET_PREVIEWS_DB = "widgetpreviews.db";
 
     public static final List<String> ALL_FILES = Collections.unmodifiableList(Arrays.asList(
+            APP_ICONS_DB,
             DEFAULT_WALLPAPER_THUMBNAIL,
             DEFAULT_WALLPAPER_THUMBNAIL_OLD,
             LAUNCHER_DB,
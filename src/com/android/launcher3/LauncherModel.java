@@ -65,6 +65,7 @@ import com.android.launcher3.stats.internal.service.AggregationIntentService;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.security.InvalidParameterException;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -73,11 +74,22 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -103,6 +115,14 @@ public class LauncherModel extends BroadcastReceiver
     public static final int LOADER_FLAG_RESIZE_GRID = 1 << 2;
 
     private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    private static final int ALL_APPS_CHUNK = 24; // batch size for the all apps icons
+
+    // To force all apps to be loaded on the loader thread only, type
+    // adb shell setprop log.tag.launcher_serial_apps VERBOSE
+    static final String SERIAL_ALL_APPS_LOADING_PROPERTY = "launcher_serial_apps";
+    // To log the time spent loading and binding all apps, type
+    // adb shell setprop log.tag.launcher_loader_timing VERBOSE
+    static final String LOADER_TIMING_PROPERTY = "launcher_loader_timing";
     private static final long INVALID_SCREEN_ID = -1L;
 
     private final boolean mAppsCanBeOnRemoveableStorage;
@@ -133,6 +153,24 @@ public class LauncherModel extends BroadcastReceiver
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Runs the app search indexing on the worker thread, after the work already queued.
+    private static final Executor sWorkerExecutor = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            sWorker.post(r);
+        }
+    };
+
+    // Batches the writes of the item helpers below, only touched on the worker thread.
+    private static final FavoritesWriteQueue sWriteQueue = new FavoritesWriteQueue(sWorker);
+
+    // Collator shared by the app comparators, see getCollator().
+    private static Collator sCollator;
+    private static Locale sCollatorLocale;
+
+    // Pool used by the loader to render all apps icons in parallel. Created on first use.
+    private static ExecutorService sAppsLoaderExecutor;
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
@@ -160,6 +198,15 @@ public class LauncherModel extends BroadcastReceiver
     // LauncherModel to their ids
     static final HashMap<Long, ItemInfo> sBgItemsIdMap = new HashMap<Long, ItemInfo>();
 
+    // sBgItemModifiedTimes maps the ids of the items in sBgItemsIdMap to the modified time of their
+    // row when it was last read from the db, so that a change to the favorites can be diffed
+    // against the loaded model instead of reloading everything
+    static final HashMap<Long, Long> sBgItemModifiedTimes = new HashMap<Long, Long>();
+
+    // sBgItemIndex indexes the items in sBgItemsIdMap by component, package and container, so
+    // that package changes only visit the items they affect
+    static final ItemInfoIndex sBgItemIndex = new ItemInfoIndex();
+
     // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
     //       created by LauncherModel that are directly on the home screen (however, no widgets or
     //       shortcuts within folders).
@@ -206,6 +253,7 @@ public class LauncherModel extends BroadcastReceiver
         public void finishBindingItems(boolean upgradePath);
         public void bindAppWidget(LauncherAppWidgetInfo info);
         public void bindAllApplications(ArrayList<AppInfo> apps);
+        public void bindAllApplicationsChunk(ArrayList<AppInfo> apps, boolean firstChunk);
         public void bindAppsAdded(ArrayList<Long> newScreens,
                                   ArrayList<ItemInfo> addNotAnimated,
                                   ArrayList<ItemInfo> addAnimated,
@@ -239,10 +287,17 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    // Unread count changes are applied at most once per frame.
+    private static final int UNREAD_UPDATE_DELAY_MS = 16;
+
+    // Guarded by unreadChangedMap.
+    private boolean mUnreadUpdatePending;
+
     private class UnreadNumberChangeTask implements Runnable {
         public void run() {
             ArrayList<UnreadInfo> unreadInfos = new ArrayList<LauncherModel.UnreadInfo>();
             synchronized (unreadChangedMap) {
+                mUnreadUpdatePending = false;
                 unreadInfos.addAll(unreadChangedMap.values());
             }
 
@@ -255,9 +310,11 @@ public class LauncherModel extends BroadcastReceiver
 
             final ArrayList<AppInfo> unreadChangeFinal = new ArrayList<AppInfo>();
             for (UnreadInfo uInfo : unreadInfos) {
-                AppInfo info = mBgAllAppsList.unreadNumbersChanged(context,
+                AppInfo info = mBgAllAppsList.unreadNumbersChanged(
                         uInfo.mComponentName, uInfo.mUnreadNum);
                 if (info != null) {
+                    // Render the badge here rather than when the icon is bound.
+                    UnreadBadgeCache.getBadge(context, info.unreadNum);
                     unreadChangeFinal.add(info);
                 }
             }
@@ -277,6 +334,14 @@ public class LauncherModel extends BroadcastReceiver
 
     private UnreadNumberChangeTask mUnreadUpdateTask = new UnreadNumberChangeTask();
 
+    // Package updates are held this long so that the ones sent in a burst are applied together.
+    private static final int PACKAGE_UPDATE_DELAY_MS = 100;
+
+    // Package updates waiting to be applied, in order. Guarded by itself.
+    private final ArrayList<PendingPackageUpdate> mPendingPackageUpdates =
+            new ArrayList<PendingPackageUpdate>();
+    private int mQueuedPackageUpdates;
+
     public interface ItemInfoFilter {
         public boolean filterItem(ItemInfo parent, ItemInfo info, ComponentName cn);
     }
@@ -304,7 +369,7 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         mApp = app;
-        mBgAllAppsList = new AllAppsList(iconCache, appFilter);
+        mBgAllAppsList = new AllAppsList(iconCache, appFilter, sWorkerExecutor);
         mIconCache = iconCache;
 
         final Resources res = context.getResources();
@@ -330,7 +395,7 @@ public class LauncherModel extends BroadcastReceiver
 
     /** Runs the specified runnable immediately if called from the worker thread, otherwise it is
      * posted on the worker thread handler. */
-    private static void runOnWorkerThread(Runnable r) {
+    static void runOnWorkerThread(Runnable r) {
         if (sWorkerThread.getThreadId() == Process.myTid()) {
             r.run();
         } else {
@@ -339,6 +404,35 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Holds the item writes to the database until {@link #releaseItemWrites()} is called, so
+     * that all the writes of an operation like a drag are applied in a single transaction.
+     */
+    static void holdItemWrites() {
+        sWriteQueue.hold();
+    }
+
+    static void releaseItemWrites() {
+        sWriteQueue.release();
+    }
+
+    /**
+     * Applies the item writes still queued, so that the caller can read them back from the
+     * database or change the rows they write. From another thread, this waits for the worker
+     * thread like {@link #flushWorkerThread()}.
+     */
+    static void flushItemWrites() {
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            sWriteQueue.flush();
+            return;
+        }
+        // Without a LauncherAppState nothing has been written through the model.
+        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+        if (app != null) {
+            app.getModel().flushWorkerThread();
+        }
+    }
+
     boolean canMigrateFromOldLauncherDb(Launcher launcher) {
         return mOldContentProviderExists && !launcher.isLauncherPreinstalled() ;
     }
@@ -381,9 +475,9 @@ public class LauncherModel extends BroadcastReceiver
         boolean found = false;
         synchronized (app) {
             if (sWorkerThread.getThreadId() != Process.myTid()) {
-                // Flush the LauncherModel worker thread, so that if we just did another
-                // processInstallShortcut, we give it time for its shortcut to get added to the
-                // database (getItemsInLocalCoordinates reads the database)
+                // Flush the LauncherModel worker thread and its queued writes, so that if we just
+                // did another processInstallShortcut, its shortcut is in the database
+                // (getItemsInLocalCoordinates reads the database)
                 model.flushWorkerThread();
             }
             final ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
@@ -686,46 +780,32 @@ public class LauncherModel extends BroadcastReceiver
         runOnWorkerThread(r);
     }
 
-    static void updateItemInDatabaseHelper(Context context, final ContentValues values,
+    static void updateItemInDatabaseHelper(final Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-        final ContentResolver cr = context.getContentResolver();
 
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
+                sWriteQueue.update(context, itemId, values);
                 updateItemArrays(item, itemId, stackTrace);
             }
         };
         runOnWorkerThread(r);
     }
 
-    static void updateItemsInDatabaseHelper(Context context, final ArrayList<ContentValues> valuesList,
-            final ArrayList<ItemInfo> items, final String callingFunction) {
-        final ContentResolver cr = context.getContentResolver();
-
+    static void updateItemsInDatabaseHelper(final Context context,
+            final ArrayList<ContentValues> valuesList, final ArrayList<ItemInfo> items,
+            final String callingFunction) {
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                ArrayList<ContentProviderOperation> ops =
-                        new ArrayList<ContentProviderOperation>();
                 int count = items.size();
                 for (int i = 0; i < count; i++) {
                     ItemInfo item = items.get(i);
                     final long itemId = item.id;
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-                    ContentValues values = valuesList.get(i);
-
-                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+                    sWriteQueue.update(context, itemId, valuesList.get(i));
                     updateItemArrays(item, itemId, stackTrace);
-
-                }
-                try {
-                    cr.applyBatch(LauncherProvider.AUTHORITY, ops);
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
             }
         };
@@ -753,6 +833,8 @@ public class LauncherModel extends BroadcastReceiver
             // as in Workspace.onDrop. Here, we just add/remove them from the list of items
             // that are on the desktop, as appropriate
             ItemInfo modelItem = sBgItemsIdMap.get(itemId);
+            // The container or the target of the item may have changed
+            sBgItemIndex.add(modelItem);
             if (modelItem != null &&
                     (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
                      modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
@@ -777,6 +859,8 @@ public class LauncherModel extends BroadcastReceiver
         mFlushingWorkerThread = true;
         Runnable waiter = new Runnable() {
                 public void run() {
+                    // Callers flush to read back what they wrote, apply the queued writes too.
+                    sWriteQueue.flush();
                     synchronized (this) {
                         notifyAll();
                         mFlushingWorkerThread = false;
@@ -937,10 +1021,27 @@ public class LauncherModel extends BroadcastReceiver
                 new String[] { title, intentWithPkg.toUri(0), intentWithoutPkg.toUri(0), userSerial},
                 null);
         try {
-            return c.moveToFirst();
+            if (c.moveToFirst()) {
+                return true;
+            }
         } finally {
             c.close();
         }
+
+        // The shortcut may have been added but still be queued, e.g. by an earlier iteration
+        // of addAndBindAddedWorkspaceApps().
+        final String uriWithPkg = intentWithPkg.toUri(0);
+        final String uriWithoutPkg = intentWithoutPkg.toUri(0);
+        for (ContentValues values : sWriteQueue.getPendingInserts()) {
+            final String pendingIntent = values.getAsString(LauncherSettings.Favorites.INTENT);
+            if (title.equals(values.getAsString(LauncherSettings.Favorites.TITLE))
+                    && (uriWithPkg.equals(pendingIntent) || uriWithoutPkg.equals(pendingIntent))
+                    && userSerial.equals(
+                            values.getAsString(LauncherSettings.Favorites.PROFILE_ID))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -948,6 +1049,11 @@ public class LauncherModel extends BroadcastReceiver
      * The ItemInfo.id is not set through this function.
      */
     static ArrayList<ItemInfo> getItemsInLocalCoordinates(Context context) {
+        // Include the items added or moved by the writes still queued. Other threads must call
+        // flushWorkerThread() first, which applies them.
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            sWriteQueue.flush();
+        }
         ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, new String[] {
@@ -996,6 +1102,8 @@ public class LauncherModel extends BroadcastReceiver
      * Find a folder in the db, creating the FolderInfo if necessary, and adding it to folderList.
      */
     FolderInfo getFolderById(Context context, HashMap<Long,FolderInfo> folderList, long id) {
+        // The folder may have been added just before, and still be queued.
+        flushItemWrites();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
                 "_id=? and (itemType=? or itemType=?)",
@@ -1069,7 +1177,6 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         final ContentValues values = new ContentValues();
-        final ContentResolver cr = context.getContentResolver();
         item.onAddToDatabase(context, values);
 
         item.id = LauncherAppState.getLauncherProvider().generateNewItemId();
@@ -1079,13 +1186,13 @@ public class LauncherModel extends BroadcastReceiver
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
-                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
+                sWriteQueue.insert(context, item.id, values, notify);
 
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     checkItemInfoLocked(item.id, item, stackTrace);
                     sBgItemsIdMap.put(item.id, item);
+                    sBgItemIndex.add(item);
                     switch (item.itemType) {
                         case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                             sBgFolders.put(item.id, (FolderInfo) item);
@@ -1132,7 +1239,9 @@ public class LauncherModel extends BroadcastReceiver
                 return cn.getPackageName().equals(pn) && info.user.equals(user);
             }
         };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        synchronized (sBgLock) {
+            return filterItemInfos(sBgItemIndex.getByPackage(pn), filter);
+        }
     }
 
     /**
@@ -1160,20 +1269,17 @@ public class LauncherModel extends BroadcastReceiver
      * @param item
      */
     static void deleteItemsFromDatabase(final Context context, final ArrayList<? extends ItemInfo> items) {
-        final ContentResolver cr = context.getContentResolver();
-
         Runnable r = new Runnable() {
             public void run() {
                 for (ItemInfo item : items) {
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(item.id, false);
-                    cr.delete(uri, null, null);
+                    sWriteQueue.delete(context, item.id);
 
                     // Lock on mBgLock *after* the db operation
                     synchronized (sBgLock) {
                         switch (item.itemType) {
                             case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                                 sBgFolders.remove(item.id);
-                                for (ItemInfo info: sBgItemsIdMap.values()) {
+                                for (ItemInfo info: sBgItemIndex.getByContainer(item.id)) {
                                     if (info.container == item.id) {
                                         // We are deleting a folder which still contains items that
                                         // think they are contained by that folder.
@@ -1194,6 +1300,7 @@ public class LauncherModel extends BroadcastReceiver
                                 break;
                         }
                         sBgItemsIdMap.remove(item.id);
+                        sBgItemIndex.remove(item);
                         sBgDbIconCache.remove(item);
                     }
                 }
@@ -1270,26 +1377,30 @@ public class LauncherModel extends BroadcastReceiver
     /**
      * Remove the contents of the specified folder from the database
      */
-    static void deleteFolderContentsFromDatabase(Context context, final FolderInfo info) {
+    static void deleteFolderContentsFromDatabase(final Context context, final FolderInfo info) {
         final ContentResolver cr = context.getContentResolver();
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
+                sWriteQueue.delete(context, info.id);
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     sBgItemsIdMap.remove(info.id);
+                    sBgItemIndex.remove(info);
                     sBgFolders.remove(info.id);
                     sBgDbIconCache.remove(info);
                     sBgWorkspaceItems.remove(info);
                 }
 
+                // The contents are deleted by container, so apply the queued writes first.
+                sWriteQueue.flush();
                 cr.delete(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
                         LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     for (ItemInfo childInfo : info.contents) {
                         sBgItemsIdMap.remove(childInfo.id);
+                        sBgItemIndex.remove(childInfo);
                         sBgDbIconCache.remove(childInfo);
                     }
                 }
@@ -1396,14 +1507,28 @@ public class LauncherModel extends BroadcastReceiver
             synchronized (unreadChangedMap) {
                 unreadChangedMap.put(componentName, new UnreadInfo(componentName, unreadNum));
             }
-            sWorker.removeCallbacks(mUnreadUpdateTask);
-            sWorker.post(mUnreadUpdateTask);
+            updateCount();
+        }
+    }
+
+    /**
+     * Returns the last unread count received for the component, or 0 if there was none. Can be
+     * called from any thread.
+     */
+    int getUnreadNumber(ComponentName componentName) {
+        synchronized (unreadChangedMap) {
+            UnreadInfo info = unreadChangedMap.get(componentName);
+            return info != null ? info.mUnreadNum : 0;
         }
     }
 
     public void updateCount() {
-        sWorker.removeCallbacks(mUnreadUpdateTask);
-        sWorker.post(mUnreadUpdateTask);
+        synchronized (unreadChangedMap) {
+            if (!mUnreadUpdatePending) {
+                mUnreadUpdatePending = true;
+                sWorker.postDelayed(mUnreadUpdateTask, UNREAD_UPDATE_DELAY_MS);
+            }
+        }
     }
 
     void forceReload() {
@@ -1415,6 +1540,23 @@ public class LauncherModel extends BroadcastReceiver
         startLoaderFromBackground();
     }
 
+    /**
+     * Called when the favorites have been changed behind the model's back. The changes are diffed
+     * against the loaded workspace and rebound in place when possible, otherwise the workspace is
+     * reloaded from scratch.
+     */
+    void onFavoritesChanged() {
+        synchronized (mLock) {
+            if (mWorkspaceLoaded) {
+                sWorker.post(new WorkspaceDiffTask());
+                return;
+            }
+        }
+        // The workspace is not loaded yet, so there is nothing to diff against.
+        resetLoadedState(false, true);
+        startLoaderFromBackground();
+    }
+
     public void resetLoadedState(boolean resetAllAppsLoaded, boolean resetWorkspaceLoaded) {
         synchronized (mLock) {
             // Stop any existing loaders first, so they don't set mAllAppsLoaded or
@@ -1578,11 +1720,12 @@ public class LauncherModel extends BroadcastReceiver
         private Context mContext;
         private boolean mIsLaunching;
         private boolean mIsLoadingAndBindingWorkspace;
-        private boolean mStopped;
+        private volatile boolean mStopped;
         private boolean mLoadAndBindStepFinished;
         private int mFlags;
 
         private HashMap<Object, CharSequence> mLabelCache;
+        private int mBoundAllAppsChunks;
 
         LoaderTask(Context context, boolean isLaunching, int flags) {
             mContext = context;
@@ -1610,7 +1753,12 @@ public class LauncherModel extends BroadcastReceiver
 
             boolean isUpgradePath = false;
             if (!mWorkspaceLoaded) {
+                final long traceStart = LauncherTrace.begin();
                 isUpgradePath = loadWorkspace();
+                synchronized (sBgLock) {
+                    LauncherTrace.end(LauncherTrace.SPAN_LOAD_WORKSPACE, traceStart,
+                            sBgItemsIdMap.size());
+                }
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return isUpgradePath;
@@ -2023,6 +2171,8 @@ public class LauncherModel extends BroadcastReceiver
                 sBgAppWidgets.clear();
                 sBgFolders.clear();
                 sBgItemsIdMap.clear();
+                sBgItemIndex.clear();
+                sBgItemModifiedTimes.clear();
                 sBgDbIconCache.clear();
                 sBgWorkspaceScreens.clear();
             }
@@ -2051,6 +2201,9 @@ public class LauncherModel extends BroadcastReceiver
 
             boolean shouldResize = ((mFlags & LOADER_FLAG_RESIZE_GRID) != 0);
 
+            // Make sure the items written by the model so far are in the db.
+            sWriteQueue.flush();
+
             if ((mFlags & LOADER_FLAG_CLEAR_WORKSPACE) != 0) {
                 Launcher.addDumpLog(TAG, "loadWorkspace: resetting launcher database", true);
                 LauncherAppState.getLauncherProvider().deleteDatabase();
@@ -2081,7 +2234,10 @@ public class LauncherModel extends BroadcastReceiver
                 final ArrayList<Long> restoredRows = new ArrayList<Long>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+                // Application icons are only needed up front when they are checked against the
+                // ones saved in the db, see queueIconToBeChecked().
+                final WorkspaceCursor c = WorkspaceCursor.query(contentResolver, contentUri,
+                        mAppsCanBeOnRemoveableStorage);
 
                 // +1 for the hotseat (it can be larger than the workspace)
                 // Load workspace in reverse order to ensure that latest items are loaded first (and
@@ -2128,6 +2284,8 @@ public class LauncherModel extends BroadcastReceiver
                     final int hiddenIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.HIDDEN);
                     final int subTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SUBTYPE);
+                    final int modifiedIndex = c.getColumnIndexOrThrow(
+                            LauncherSettings.Favorites.MODIFIED);
                     //final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI); //final int displayModeIndex = c.getColumnIndexOrThrow(
                     //        LauncherSettings.Favorites.DISPLAY_MODE);
 
@@ -2499,12 +2657,20 @@ public class LauncherModel extends BroadcastReceiver
                                 }
                                 break;
                             }
+
+                            id = c.getLong(idIndex);
+                            if (sBgItemsIdMap.containsKey(id)) {
+                                sBgItemModifiedTimes.put(id, c.getLong(modifiedIndex));
+                                sBgItemIndex.add(sBgItemsIdMap.get(id));
+                            }
                         } catch (Exception e) {
                             Launcher.addDumpLog(TAG, "Desktop items loading interrupted", e, true);
                         }
                     }
                 } finally {
                     if (c != null) {
+                        Launcher.addDumpLog(TAG, "loadWorkspace: read " + c.getStats(),
+                                DEBUG_LOADERS);
                         c.close();
                     }
                 }
@@ -2906,8 +3072,11 @@ public class LauncherModel extends BroadcastReceiver
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
+                            final long traceStart = LauncherTrace.begin();
                             callbacks.bindItems(workspaceItems, start, start+chunkSize,
                                     false);
+                            LauncherTrace.end(LauncherTrace.SPAN_BIND_WORKSPACE_CHUNK,
+                                    traceStart, chunkSize);
                         }
                     }
                 };
@@ -3095,7 +3264,10 @@ public class LauncherModel extends BroadcastReceiver
                 Log.d(TAG, "loadAndBindAllApps mAllAppsLoaded=" + mAllAppsLoaded);
             }
             if (!mAllAppsLoaded) {
+                final long traceStart = LauncherTrace.begin();
                 loadAllApps();
+                LauncherTrace.end(LauncherTrace.SPAN_LOAD_ALL_APPS, traceStart,
+                        mBgAllAppsList.size());
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
@@ -3141,7 +3313,11 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         private void loadAllApps() {
-            final long loadTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final boolean logTiming = DEBUG_LOADERS
+                    || Utilities.isPropertyEnabled(LOADER_TIMING_PROPERTY);
+            final boolean parallel =
+                    !Utilities.isPropertyEnabled(SERIAL_ALL_APPS_LOADING_PROPERTY);
+            final long loadTime = logTiming ? SystemClock.uptimeMillis() : 0;
 
             final Callbacks oldCallbacks = mCallbacks.get();
             if (oldCallbacks == null) {
@@ -3157,6 +3333,10 @@ public class LauncherModel extends BroadcastReceiver
 
             // Clear the list of apps
             mBgAllAppsList.clear();
+            mBoundAllAppsChunks = 0;
+            // When all apps are disabled the whole list is needed at once to place missing
+            // apps on the workspace, so don't stream it.
+            final boolean streamBinding = !LauncherAppState.isDisableAllApps();
             SharedPreferences prefs = mContext.getSharedPreferences(
                     LauncherAppState.getSharedPreferencesKey(), Context.MODE_PRIVATE);
             for (UserHandleCompat user : profiles) {
@@ -3182,11 +3362,20 @@ public class LauncherModel extends BroadcastReceiver
                             + (SystemClock.uptimeMillis()-sortTime) + "ms");
                 }
 
-                // Create the ApplicationInfos
-                for (int i = 0; i < apps.size(); i++) {
-                    LauncherActivityInfoCompat app = apps.get(i);
-                    // This builds the icon bitmaps.
-                    mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache, mLabelCache));
+                // Create the ApplicationInfos. This builds the icon bitmaps.
+                if (parallel) {
+                    loadAppInfosInParallel(oldCallbacks, apps, user, streamBinding);
+                } else {
+                    for (int i = 0; i < apps.size(); i++) {
+                        mBgAllAppsList.add(new AppInfo(mContext, apps.get(i), user, mIconCache,
+                                mLabelCache));
+                        if (streamBinding && mBgAllAppsList.added.size() >= ALL_APPS_CHUNK) {
+                            bindAllAppsChunk(oldCallbacks);
+                        }
+                    }
+                }
+                if (mStopped) {
+                    return;
                 }
 
                 if (ADD_MANAGED_PROFILE_SHORTCUTS && !user.equals(UserHandleCompat.myUserHandle())) {
@@ -3208,9 +3397,79 @@ public class LauncherModel extends BroadcastReceiver
                     prefs.edit().putStringSet(shortcutsSetKey, newPackageSet).commit();
                 }
             }
-            // Huh? Shouldn't this be inside the Runnable below?
+            // The chunks only fill the drawer, the complete list is bound once loading ends.
+            bindAllAppsLoaded(oldCallbacks);
+
+            if (logTiming) {
+                Log.d(TAG, "Icons processed " + (parallel ? "in parallel" : "serially") + " in "
+                        + (SystemClock.uptimeMillis() - loadTime) + "ms for "
+                        + mBgAllAppsList.size() + " apps, bound in " + mBoundAllAppsChunks
+                        + " chunks");
+            }
+        }
+
+        /**
+         * Creates the AppInfos for the given apps on {@link #sAppsLoaderExecutor}, adding them
+         * to the all apps list in order as each chunk completes.
+         */
+        private void loadAppInfosInParallel(final Callbacks oldCallbacks,
+                final List<LauncherActivityInfoCompat> apps, final UserHandleCompat user,
+                boolean streamBinding) {
+            final Context context = mContext;
+            final HashMap<Object, CharSequence> labelCache = mLabelCache;
+            final ExecutorService executor = getAppsLoaderExecutor();
+            final ArrayList<Future<ArrayList<AppInfo>>> chunks =
+                    new ArrayList<Future<ArrayList<AppInfo>>>();
+            final int N = apps.size();
+            for (int i = 0; i < N; i += ALL_APPS_CHUNK) {
+                final List<LauncherActivityInfoCompat> chunk =
+                        apps.subList(i, Math.min(i + ALL_APPS_CHUNK, N));
+                chunks.add(executor.submit(new Callable<ArrayList<AppInfo>>() {
+                    @Override
+                    public ArrayList<AppInfo> call() {
+                        ArrayList<AppInfo> infos = new ArrayList<AppInfo>(chunk.size());
+                        for (LauncherActivityInfoCompat app : chunk) {
+                            if (mStopped) {
+                                break;
+                            }
+                            infos.add(new AppInfo(context, app, user, mIconCache, labelCache));
+                        }
+                        return infos;
+                    }
+                }));
+            }
+
+            for (Future<ArrayList<AppInfo>> chunk : chunks) {
+                ArrayList<AppInfo> infos;
+                try {
+                    infos = chunk.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                if (mStopped) {
+                    return;
+                }
+                for (AppInfo info : infos) {
+                    mBgAllAppsList.add(info);
+                }
+                if (streamBinding && mBgAllAppsList.added.size() >= ALL_APPS_CHUNK) {
+                    bindAllAppsChunk(oldCallbacks);
+                }
+            }
+        }
+
+        /**
+         * Posts the apps added to the all apps list since the last chunk. The first chunk
+         * replaces the apps in the drawer, later chunks are appended to it.
+         */
+        private void bindAllAppsChunk(final Callbacks oldCallbacks) {
             final ArrayList<AppInfo> added = mBgAllAppsList.added;
             mBgAllAppsList.added = new ArrayList<AppInfo>();
+            final boolean firstChunk = mBoundAllAppsChunks == 0;
+            mBoundAllAppsChunks++;
 
             // Post callback on main thread
             mHandler.post(new Runnable() {
@@ -3218,7 +3477,7 @@ public class LauncherModel extends BroadcastReceiver
                     final long bindTime = SystemClock.uptimeMillis();
                     final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
-                        callbacks.bindAllApplications(added);
+                        callbacks.bindAllApplicationsChunk(added, firstChunk);
                         if (DEBUG_LOADERS) {
                             Log.d(TAG, "bound " + added.size() + " apps in "
                                 + (SystemClock.uptimeMillis() - bindTime) + "ms");
@@ -3228,11 +3487,34 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
             });
+        }
 
-            if (DEBUG_LOADERS) {
-                Log.d(TAG, "Icons processed in "
-                        + (SystemClock.uptimeMillis() - loadTime) + "ms");
-            }
+        /**
+         * Posts the complete all apps list, after the chunks streamed while loading.
+         */
+        private void bindAllAppsLoaded(final Callbacks oldCallbacks) {
+            mBgAllAppsList.added = new ArrayList<AppInfo>();
+            // shallow copy
+            @SuppressWarnings("unchecked")
+            final ArrayList<AppInfo> list
+                    = (ArrayList<AppInfo>) mBgAllAppsList.data.clone();
+
+            // Post callback on main thread
+            mHandler.post(new Runnable() {
+                public void run() {
+                    final long bindTime = SystemClock.uptimeMillis();
+                    final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.bindAllApplications(list);
+                        if (DEBUG_LOADERS) {
+                            Log.d(TAG, "bound all " + list.size() + " apps in "
+                                + (SystemClock.uptimeMillis() - bindTime) + "ms");
+                        }
+                    } else {
+                        Log.i(TAG, "not binding apps: no Launcher activity");
+                    }
+                }
+            });
         }
 
         public void dumpState() {
@@ -3246,10 +3528,107 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    private static synchronized ExecutorService getAppsLoaderExecutor() {
+        if (sAppsLoaderExecutor == null) {
+            final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            sAppsLoaderExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("launcher-apps-loader-" + mCount.getAndIncrement()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+        }
+        return sAppsLoaderExecutor;
+    }
+
+    /**
+     * Queues the package update. The updates queued within PACKAGE_UPDATE_DELAY_MS are merged
+     * per op and user, and applied on the worker thread as one batch.
+     */
     void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+        synchronized (mPendingPackageUpdates) {
+            if (mPendingPackageUpdates.isEmpty()) {
+                sWorker.postDelayed(mApplyPackageUpdates, PACKAGE_UPDATE_DELAY_MS);
+            }
+            for (String packageName : task.mPackages) {
+                queuePackageUpdateLocked(task.mOp, packageName, task.mUser);
+            }
+            mQueuedPackageUpdates++;
+        }
     }
 
+    private void queuePackageUpdateLocked(int op, String packageName, UserHandleCompat user) {
+        // Updates of different packages don't depend on each other, so the package can join any
+        // pending update with the same op and user, as long as no later update touches the
+        // package. A repeated update of the package is simply dropped.
+        PendingPackageUpdate target = null;
+        for (int i = mPendingPackageUpdates.size() - 1; i >= 0; i--) {
+            PendingPackageUpdate pending = mPendingPackageUpdates.get(i);
+            if (!pending.user.equals(user)) {
+                continue;
+            }
+            if (pending.op == op && target == null) {
+                target = pending;
+            }
+            if (pending.packages.contains(packageName)) {
+                break;
+            }
+        }
+        if (target == null) {
+            target = new PendingPackageUpdate(op, user);
+            mPendingPackageUpdates.add(target);
+        }
+        target.packages.add(packageName);
+    }
+
+    private static class PendingPackageUpdate {
+        final int op;
+        final UserHandleCompat user;
+        final LinkedHashSet<String> packages = new LinkedHashSet<String>();
+
+        PendingPackageUpdate(int op, UserHandleCompat user) {
+            this.op = op;
+            this.user = user;
+        }
+    }
+
+    private final Runnable mApplyPackageUpdates = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<PackageUpdatedTask> tasks = new ArrayList<PackageUpdatedTask>();
+            final int queued;
+            synchronized (mPendingPackageUpdates) {
+                for (PendingPackageUpdate pending : mPendingPackageUpdates) {
+                    tasks.add(new PackageUpdatedTask(pending.op, pending.packages.toArray(
+                            new String[pending.packages.size()]), pending.user));
+                }
+                queued = mQueuedPackageUpdates;
+                mPendingPackageUpdates.clear();
+                mQueuedPackageUpdates = 0;
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "applying " + queued + " package updates as " + tasks.size());
+            }
+
+            final long traceStart = LauncherTrace.begin();
+            final Context context = mApp.getContext();
+            for (PackageUpdatedTask task : tasks) {
+                task.updatePackages(context);
+            }
+            // The widgets and shortcuts are listed once for the whole batch.
+            bindPackagesUpdated(context);
+            LauncherTrace.end(LauncherTrace.SPAN_PACKAGE_UPDATE, traceStart, queued);
+        }
+    };
+
     private class AppsAvailabilityCheck extends BroadcastReceiver {
 
         @Override
@@ -3349,6 +3728,295 @@ public class LauncherModel extends BroadcastReceiver
         sWorker.post(r);
     }
 
+    /**
+     * Diffs the favorites table against the loaded workspace using the modified time of each row.
+     * Rows that were only touched by the launcher itself are skipped, shortcuts whose title or
+     * icon changed are updated in place and removed shortcuts are unbound. Any other change, like
+     * an added row, a moved item or a removed folder child, falls back to a full reload of the
+     * workspace.
+     */
+    private class WorkspaceDiffTask implements Runnable {
+        // The new modified time of the changed rows, the loaded shortcuts paired with a fresh
+        // copy read from their row, and the loaded shortcuts whose row is gone.
+        private final HashMap<Long, Long> mModifiedTimes = new HashMap<Long, Long>();
+        private final ArrayList<Pair<ShortcutInfo, ShortcutInfo>> mUpdated =
+                new ArrayList<Pair<ShortcutInfo, ShortcutInfo>>();
+        private final ArrayList<ShortcutInfo> mRemoved = new ArrayList<ShortcutInfo>();
+
+        public void run() {
+            synchronized (mLock) {
+                if (!mWorkspaceLoaded) {
+                    // A full reload is already pending and will pick up the changes.
+                    return;
+                }
+            }
+
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final Callbacks callbacks = getCallback();
+            boolean applied = false;
+            synchronized (sBgLock) {
+                if (diff()) {
+                    apply(callbacks);
+                    applied = true;
+                }
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "diffed workspace in " + (SystemClock.uptimeMillis() - t) + "ms: "
+                        + mUpdated.size() + " updated, " + mRemoved.size() + " removed, "
+                        + (applied ? "applied" : "reloading"));
+            }
+
+            if (!applied) {
+                Launcher.addDumpLog(TAG, "Favorites changed, reloading the workspace", true);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        resetLoadedState(false, true);
+                        startLoaderFromBackground();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Collects the changes into the fields of this task, without touching the model. Returns
+         * false if the changes can't be applied in place.
+         */
+        private boolean diff() {
+            sWriteQueue.flush();
+            final ContentResolver cr = mApp.getContext().getContentResolver();
+            final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION;
+            final HashMap<Long, Long> dbModifiedTimes = new HashMap<Long, Long>();
+            Cursor c = cr.query(contentUri, new String[] {
+                    LauncherSettings.Favorites._ID, LauncherSettings.Favorites.MODIFIED },
+                    null, null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                while (c.moveToNext()) {
+                    dbModifiedTimes.put(c.getLong(0), c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+
+            final ArrayList<Long> changedIds = new ArrayList<Long>();
+            for (Entry<Long, Long> entry : dbModifiedTimes.entrySet()) {
+                if (!sBgItemsIdMap.containsKey(entry.getKey())) {
+                    // Added rows need the full validation of loadWorkspace().
+                    return false;
+                }
+                Long loaded = sBgItemModifiedTimes.get(entry.getKey());
+                if (loaded == null || !loaded.equals(entry.getValue())) {
+                    changedIds.add(entry.getKey());
+                    mModifiedTimes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (ItemInfo info : sBgItemsIdMap.values()) {
+                if (!dbModifiedTimes.containsKey(info.id)) {
+                    if (!(info instanceof ShortcutInfo)
+                            || (info.container != LauncherSettings.Favorites.CONTAINER_DESKTOP
+                            && info.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
+                        // The contents of the folders are shared with the bound folders, and
+                        // only changed on the main thread.
+                        return false;
+                    }
+                    mRemoved.add((ShortcutInfo) info);
+                }
+            }
+            if (!canUnbind(mRemoved)) {
+                return false;
+            }
+            if (changedIds.isEmpty()) {
+                return true;
+            }
+
+            c = cr.query(contentUri, null, LauncherSettings.Favorites._ID + " IN ("
+                    + TextUtils.join(", ", changedIds) + ")", null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+                final int itemTypeIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ITEM_TYPE);
+                final int containerIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.CONTAINER);
+                final int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
+                final int cellXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLX);
+                final int cellYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLY);
+                final int spanXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANX);
+                final int spanYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANY);
+                final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
+                final int titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
+                final int iconTypeIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_TYPE);
+                final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
+                final int iconPackageIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_PACKAGE);
+                final int iconResourceIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_RESOURCE);
+                final int appWidgetIdIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.APPWIDGET_ID);
+                final int restoredIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.RESTORED);
+                final int hiddenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.HIDDEN);
+                final int subTypeIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.SUBTYPE);
+
+                while (c.moveToNext()) {
+                    final ItemInfo info = sBgItemsIdMap.get(c.getLong(idIndex));
+                    final int itemType = c.getInt(itemTypeIndex);
+                    final int restored = c.getInt(restoredIndex);
+                    if (info == null || info.itemType != itemType
+                            || info.container != c.getInt(containerIndex)
+                            || info.screenId != c.getInt(screenIndex)
+                            || info.cellX != c.getInt(cellXIndex)
+                            || info.cellY != c.getInt(cellYIndex)) {
+                        // Moving items around needs a new layout.
+                        return false;
+                    }
+
+                    switch (itemType) {
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                            final ShortcutInfo shortcut = (ShortcutInfo) info;
+                            final Intent intent;
+                            try {
+                                intent = Intent.parseUri(c.getString(intentIndex), 0);
+                            } catch (URISyntaxException e) {
+                                return false;
+                            }
+                            if (shortcut.intent == null || !intent.filterEquals(shortcut.intent)
+                                    || (restored != 0 && restored != shortcut.status)) {
+                                return false;
+                            }
+                            if (itemType == LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+                                // The title and icon of shortcuts only live in the db.
+                                mUpdated.add(Pair.create(shortcut, getShortcutInfo(c,
+                                        mApp.getContext(), iconTypeIndex, iconPackageIndex,
+                                        iconResourceIndex, iconIndex, titleIndex)));
+                            }
+                            break;
+                        case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                            final FolderInfo folder = (FolderInfo) info;
+                            if (!TextUtils.equals(folder.title, c.getString(titleIndex))
+                                    || folder.hidden != (c.getInt(hiddenIndex) > 0)
+                                    || folder.subType != c.getInt(subTypeIndex)) {
+                                return false;
+                            }
+                            break;
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                            final LauncherAppWidgetInfo widget = (LauncherAppWidgetInfo) info;
+                            if (widget.appWidgetId != c.getInt(appWidgetIdIndex)
+                                    || widget.spanX != c.getInt(spanXIndex)
+                                    || widget.spanY != c.getInt(spanYIndex)
+                                    || widget.restoreStatus != restored) {
+                                return false;
+                            }
+                            break;
+                        default:
+                            return false;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether the shortcuts can be unbound. The workspace removes shortcuts by
+         * component, so this only works if no other shortcut points to the same component.
+         */
+        private boolean canUnbind(ArrayList<ShortcutInfo> removed) {
+            if (removed.isEmpty()) {
+                return true;
+            }
+            final HashSet<Long> removedIds = new HashSet<Long>();
+            final HashSet<Pair<ComponentName, UserHandleCompat>> components =
+                    new HashSet<Pair<ComponentName, UserHandleCompat>>();
+            for (ShortcutInfo info : removed) {
+                ComponentName cn = info.getTargetComponent();
+                if (cn == null) {
+                    return false;
+                }
+                removedIds.add(info.id);
+                components.add(Pair.create(cn, info.user));
+            }
+            for (Pair<ComponentName, UserHandleCompat> component : components) {
+                for (ItemInfo info : sBgItemIndex.getByComponent(component.first)) {
+                    if (info instanceof ShortcutInfo && !removedIds.contains(info.id)
+                            && components.contains(Pair.create(component.first, info.user))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Applies the collected changes to the model and binds them.
+         */
+        private void apply(final Callbacks callbacks) {
+            sBgItemModifiedTimes.putAll(mModifiedTimes);
+
+            final ArrayList<ShortcutInfo> updated = new ArrayList<ShortcutInfo>();
+            for (Pair<ShortcutInfo, ShortcutInfo> pair : mUpdated) {
+                final ShortcutInfo shortcut = pair.first;
+                final ShortcutInfo fresh = pair.second;
+                if (fresh.title != null) {
+                    shortcut.title = fresh.title;
+                }
+                shortcut.customIcon = fresh.customIcon;
+                shortcut.usingFallbackIcon = fresh.usingFallbackIcon;
+                shortcut.setIcon(fresh.getIcon(mIconCache));
+                updated.add(shortcut);
+            }
+
+            final HashMap<UserHandleCompat, ArrayList<ShortcutInfo>> removedByUser =
+                    new HashMap<UserHandleCompat, ArrayList<ShortcutInfo>>();
+            for (ShortcutInfo info : mRemoved) {
+                sBgWorkspaceItems.remove(info);
+                sBgItemsIdMap.remove(info.id);
+                sBgItemIndex.remove(info);
+                sBgItemModifiedTimes.remove(info.id);
+                sBgDbIconCache.remove(info);
+
+                ArrayList<ShortcutInfo> removed = removedByUser.get(info.user);
+                if (removed == null) {
+                    removed = new ArrayList<ShortcutInfo>();
+                    removedByUser.put(info.user, removed);
+                }
+                removed.add(info);
+            }
+
+            if (!updated.isEmpty()) {
+                // Shortcuts with a custom title and icon always belong to the current user.
+                bindShortcutsChanged(callbacks, updated, new ArrayList<ShortcutInfo>(),
+                        UserHandleCompat.myUserHandle());
+            }
+            for (Entry<UserHandleCompat, ArrayList<ShortcutInfo>> entry
+                    : removedByUser.entrySet()) {
+                bindShortcutsChanged(callbacks, new ArrayList<ShortcutInfo>(), entry.getValue(),
+                        entry.getKey());
+            }
+        }
+
+        private void bindShortcutsChanged(final Callbacks callbacks,
+                final ArrayList<ShortcutInfo> updated, final ArrayList<ShortcutInfo> removed,
+                final UserHandleCompat user) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    Callbacks cb = getCallback();
+                    if (callbacks == cb && cb != null) {
+                        callbacks.bindShortcutsChanged(updated, removed, user);
+                    }
+                }
+            });
+        }
+    }
+
     private class PackageUpdatedTask implements Runnable {
         int mOp;
         String[] mPackages;
@@ -3369,7 +4037,15 @@ public class LauncherModel extends BroadcastReceiver
 
         public void run() {
             final Context context = mApp.getContext();
+            updatePackages(context);
+            bindPackagesUpdated(context);
+        }
 
+        /**
+         * Applies the update to the model and binds the changed apps and items, except for the
+         * list of widgets and shortcuts, see {@link LauncherModel#bindPackagesUpdated}.
+         */
+        void updatePackages(final Context context) {
             final String[] packages = mPackages;
             final int N = packages.length;
             switch (mOp) {
@@ -3408,6 +4084,7 @@ public class LauncherModel extends BroadcastReceiver
                 case OP_UPDATE:
                     for (int i=0; i<N; i++) {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
+                        mIconCache.remove(packages[i], mUser);
                         mBgAllAppsList.updatePackage(context, packages[i], mUser);
                         WidgetPreviewLoader.removePackageFromDb(
                                 mApp.getWidgetPreviewCacheDb(), packages[i]);
@@ -3502,7 +4179,13 @@ public class LauncherModel extends BroadcastReceiver
 
                 HashSet<String> packageSet = new HashSet<String>(Arrays.asList(packages));
                 synchronized (sBgLock) {
-                    for (ItemInfo info : sBgItemsIdMap.values()) {
+                    // Only visit the items targeting or using the icons of the packages
+                    final Set<ItemInfo> packageItems = Collections.newSetFromMap(
+                            new IdentityHashMap<ItemInfo, Boolean>());
+                    for (String packageName : packageSet) {
+                        packageItems.addAll(sBgItemIndex.getByPackage(packageName));
+                    }
+                    for (ItemInfo info : packageItems) {
                         if (info instanceof ShortcutInfo && mUser.equals(info.user)) {
                             ShortcutInfo si = (ShortcutInfo) info;
                             boolean infoUpdated = false;
@@ -3666,29 +4349,39 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 });
             }
+        }
+    }
 
-            final ArrayList<Object> widgetsAndShortcuts =
-                    getSortedWidgetsAndShortcuts(context);
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    Callbacks cb = getCallback();
-                    if (callbacks == cb && cb != null) {
-                        callbacks.bindPackagesUpdated(widgetsAndShortcuts);
-                    }
+    /**
+     * Binds the list of widgets and shortcuts after packages were updated.
+     */
+    private void bindPackagesUpdated(Context context) {
+        final Callbacks callbacks = getCallback();
+        if (callbacks == null) {
+            return;
+        }
+
+        final ArrayList<Object> widgetsAndShortcuts =
+                getSortedWidgetsAndShortcuts(context);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Callbacks cb = getCallback();
+                if (callbacks == cb && cb != null) {
+                    callbacks.bindPackagesUpdated(widgetsAndShortcuts);
                 }
-            });
+            }
+        });
 
-            // Write all the logs to disk
-            mHandler.post(new Runnable() {
-                public void run() {
-                    Callbacks cb = getCallback();
-                    if (callbacks == cb && cb != null) {
-                        callbacks.dumpLogsToLocalData();
-                    }
+        // Write all the logs to disk
+        mHandler.post(new Runnable() {
+            public void run() {
+                Callbacks cb = getCallback();
+                if (callbacks == cb && cb != null) {
+                    callbacks.dumpLogsToLocalData();
                 }
-            });
-        }
+            }
+        });
     }
 
     // Returns a list of ResolveInfos/AppWindowInfos in sorted order
@@ -3908,7 +4601,9 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
         };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        synchronized (sBgLock) {
+            return filterItemInfos(sBgItemIndex.getByComponent(cname), filter);
+        }
     }
 
     /**
@@ -4099,13 +4794,35 @@ public class LauncherModel extends BroadcastReceiver
         return folderInfo;
     }
 
+    /**
+     * Returns the apps whose title, or the start of a word of it, or its pinyin or romaji
+     * matches the query, most launched first. Can be called from any thread.
+     */
+    public ArrayList<AppInfo> searchApps(String query, Stats stats) {
+        return mBgAllAppsList.searchIndex.query(query, stats != null
+                ? getAppLaunchCountComparator(stats) : getAppNameComparator());
+    }
+
+    /**
+     * Returns the collator for the current locale. The same instance is returned until the
+     * locale changes, so that the sort keys made with it can be reused, see
+     * {@link AppInfo#getSortKey}. Callers must synchronize on the collator to use it.
+     */
+    static synchronized Collator getCollator() {
+        final Locale locale = Locale.getDefault();
+        if (sCollator == null || !locale.equals(sCollatorLocale)) {
+            sCollator = Collator.getInstance(locale);
+            sCollatorLocale = locale;
+        }
+        return sCollator;
+    }
+
     public static final Comparator<AppInfo> getAppNameComparator() {
-        final Collator collator = Collator.getInstance();
+        final Collator collator = getCollator();
         return new Comparator<AppInfo>() {
             public final int compare(AppInfo a, AppInfo b) {
                 if (a.user.equals(b.user)) {
-                    int result = collator.compare(a.title.toString().trim(),
-                            b.title.toString().trim());
+                    int result = a.getSortKey(collator).compareTo(b.getSortKey(collator));
                     if (result == 0) {
                         result = a.componentName.compareTo(b.componentName);
                     }
@@ -4119,13 +4836,24 @@ public class LauncherModel extends BroadcastReceiver
         };
     }
     public static final Comparator<AppInfo> getAppLaunchCountComparator(final Stats stats) {
-        final Collator collator = Collator.getInstance();
+        final Collator collator = getCollator();
+        // Look up the launch count of each app once per sort rather than once per comparison.
+        final IdentityHashMap<AppInfo, Integer> launchCounts =
+                new IdentityHashMap<AppInfo, Integer>();
         return new Comparator<AppInfo>() {
+            private int launchCount(AppInfo info) {
+                Integer count = launchCounts.get(info);
+                if (count == null) {
+                    count = stats.launchCount(info.intent);
+                    launchCounts.put(info, count);
+                }
+                return count;
+            }
+
             public final int compare(AppInfo a, AppInfo b) {
-                int result = stats.launchCount(b.intent) - stats.launchCount(a.intent);
+                int result = launchCount(b) - launchCount(a);
                 if (result == 0) {
-                    result = collator.compare(a.title.toString().trim(),
-                            b.title.toString().trim());
+                    result = a.getSortKey(collator).compareTo(b.getSortKey(collator));
                     if (result == 0) {
                         result = a.componentName.compareTo(b.componentName);
                     }
@@ -4152,6 +4880,8 @@ public class LauncherModel extends BroadcastReceiver
     public static class ShortcutNameComparator implements Comparator<LauncherActivityInfoCompat> {
         private Collator mCollator;
         private HashMap<Object, CharSequence> mLabelCache;
+        private final HashMap<ComponentName, CollationKey> mSortKeys =
+                new HashMap<ComponentName, CollationKey>();
         ShortcutNameComparator(PackageManager pm) {
             mLabelCache = new HashMap<Object, CharSequence>();
             mCollator = Collator.getInstance();
@@ -4161,57 +4891,48 @@ public class LauncherModel extends BroadcastReceiver
             mCollator = Collator.getInstance();
         }
         public final int compare(LauncherActivityInfoCompat a, LauncherActivityInfoCompat b) {
-            String labelA, labelB;
-            ComponentName keyA = a.getComponentName();
-            ComponentName keyB = b.getComponentName();
-            if (mLabelCache.containsKey(keyA)) {
-                labelA = mLabelCache.get(keyA).toString();
-            } else {
-                labelA = a.getLabel().toString().trim();
-
-                mLabelCache.put(keyA, labelA);
-            }
-            if (mLabelCache.containsKey(keyB)) {
-                labelB = mLabelCache.get(keyB).toString();
-            } else {
-                labelB = b.getLabel().toString().trim();
-
-                mLabelCache.put(keyB, labelB);
+            return getSortKey(a).compareTo(getSortKey(b));
+        }
+        private CollationKey getSortKey(LauncherActivityInfoCompat info) {
+            ComponentName key = info.getComponentName();
+            CollationKey sortKey = mSortKeys.get(key);
+            if (sortKey == null) {
+                CharSequence label = mLabelCache.get(key);
+                if (label == null) {
+                    label = info.getLabel().toString().trim();
+                    mLabelCache.put(key, label);
+                }
+                sortKey = mCollator.getCollationKey(label.toString());
+                mSortKeys.put(key, sortKey);
             }
-            return mCollator.compare(labelA, labelB);
+            return sortKey;
         }
     };
     public static class WidgetAndShortcutNameComparator implements Comparator<Object> {
         private final AppWidgetManagerCompat mManager;
         private final PackageManager mPackageManager;
-        private final HashMap<Object, String> mLabelCache;
+        private final HashMap<Object, CollationKey> mSortKeys;
         private final Collator mCollator;
 
         WidgetAndShortcutNameComparator(Context context) {
             mManager = AppWidgetManagerCompat.getInstance(context);
             mPackageManager = context.getPackageManager();
-            mLabelCache = new HashMap<Object, String>();
+            mSortKeys = new HashMap<Object, CollationKey>();
             mCollator = Collator.getInstance();
         }
         public final int compare(Object a, Object b) {
-            String labelA, labelB;
-            if (mLabelCache.containsKey(a)) {
-                labelA = mLabelCache.get(a);
-            } else {
-                labelA = (a instanceof AppWidgetProviderInfo)
-                        ? mManager.loadLabel((AppWidgetProviderInfo) a)
-                        : ((ResolveInfo) a).loadLabel(mPackageManager).toString().trim();
-                mLabelCache.put(a, labelA);
-            }
-            if (mLabelCache.containsKey(b)) {
-                labelB = mLabelCache.get(b);
-            } else {
-                labelB = (b instanceof AppWidgetProviderInfo)
-                        ? mManager.loadLabel((AppWidgetProviderInfo) b)
-                        : ((ResolveInfo) b).loadLabel(mPackageManager).toString().trim();
-                mLabelCache.put(b, labelB);
+            return getSortKey(a).compareTo(getSortKey(b));
+        }
+        private CollationKey getSortKey(Object o) {
+            CollationKey sortKey = mSortKeys.get(o);
+            if (sortKey == null) {
+                String label = (o instanceof AppWidgetProviderInfo)
+                        ? mManager.loadLabel((AppWidgetProviderInfo) o)
+                        : ((ResolveInfo) o).loadLabel(mPackageManager).toString().trim();
+                sortKey = mCollator.getCollationKey(label);
+                mSortKeys.put(o, sortKey);
             }
-            return mCollator.compare(labelA, labelB);
+            return sortKey;
         }
     };
 
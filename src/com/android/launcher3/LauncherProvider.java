@@ -98,6 +98,16 @@ public class LauncherProvider extends ContentProvider {
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
     private DatabaseHelper mOpenHelper;
+
+    private static final class BatchNotifications {
+        final HashSet<Uri> uris = new HashSet<Uri>();
+        boolean dataChanged;
+    }
+
+    // Set while applyBatch() runs on the calling thread.
+    private final ThreadLocal<BatchNotifications> mBatchNotifications =
+            new ThreadLocal<BatchNotifications>();
+
     private static boolean sJustLoadedFromOldDb;
 
     @Override
@@ -203,15 +213,27 @@ public class LauncherProvider extends ContentProvider {
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
+        // Collect the notifications of the operations and send them once the batch is committed.
+        final BatchNotifications notifications = new BatchNotifications();
+        mBatchNotifications.set(notifications);
+        ContentProviderResult[] result;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.beginTransaction();
         try {
-            ContentProviderResult[] result =  super.applyBatch(operations);
+            result =  super.applyBatch(operations);
             db.setTransactionSuccessful();
-            return result;
         } finally {
             db.endTransaction();
+            mBatchNotifications.remove();
+        }
+
+        for (Uri uri : notifications.uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
         }
+        if (notifications.dataChanged) {
+            notifyDataChanged();
+        }
+        return result;
     }
 
     @Override
@@ -239,10 +261,26 @@ public class LauncherProvider extends ContentProvider {
 
     private void sendNotify(Uri uri) {
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
-        if (notify == null || "true".equals(notify)) {
+        boolean notifyObservers = notify == null || "true".equals(notify);
+
+        final BatchNotifications notifications = mBatchNotifications.get();
+        if (notifications != null) {
+            // Within a batch, observers get one notification per table.
+            if (notifyObservers) {
+                notifications.uris.add(new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                        .authority(AUTHORITY).appendPath(uri.getPathSegments().get(0)).build());
+            }
+            notifications.dataChanged = true;
+            return;
+        }
+
+        if (notifyObservers) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
+        notifyDataChanged();
+    }
 
+    private void notifyDataChanged() {
         // always notify the backup agent
         LauncherBackupAgentHelper.dataChanged(getContext());
         if (mListener != null) {
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.os.Build;
+
+import java.io.PrintWriter;
+
+/**
+ * Always on tracing of the launcher's hot paths. The spans are recorded into a fixed size ring
+ * of primitive arrays, so recording a span never allocates, and the per span totals are kept
+ * for the life of the process.
+ *
+ * Usage:
+ * <pre>
+ *     final long start = LauncherTrace.begin();
+ *     ...
+ *     LauncherTrace.end(LauncherTrace.SPAN_LOAD_WORKSPACE, start, itemCount);
+ * </pre>
+ *
+ * The trace is part of the launcher activity's dumpsys. With the {@link #DUMP_ARG} argument
+ * only the trace is dumped, as comma separated values, see {@link #dumpCsv}.
+ */
+final class LauncherTrace {
+
+    // The spans, and the arg recorded with each.
+    static final int SPAN_LOAD_WORKSPACE = 0;       // items loaded
+    static final int SPAN_LOAD_ALL_APPS = 1;        // apps loaded
+    static final int SPAN_BIND_WORKSPACE_CHUNK = 2; // items bound
+    static final int SPAN_ICON_CACHE_MISS = 3;      // none
+    static final int SPAN_WIDGET_PREVIEW = 4;       // 0 if read from the db, 1 if generated
+    static final int SPAN_PACKAGE_UPDATE = 5;       // package updates applied
+
+    private static final String[] SPAN_NAMES = {
+        "loadWorkspace",
+        "loadAllApps",
+        "bindWorkspaceChunk",
+        "iconCacheMiss",
+        "widgetPreview",
+        "packageUpdate",
+    };
+
+    /** The dumpsys argument for the machine readable export. */
+    static final String DUMP_ARG = "--trace";
+
+    private static final int CAPACITY = 1024;
+    // How many of the most recent spans are listed in the human readable dump.
+    private static final int DUMP_RECENT = 64;
+
+    private static final Object sLock = new Object();
+
+    // The ring, guarded by sLock.
+    private static final int[] sSpans = new int[CAPACITY];
+    private static final int[] sArgs = new int[CAPACITY];
+    private static final long[] sThreads = new long[CAPACITY];
+    private static final long[] sStarts = new long[CAPACITY];
+    private static final long[] sDurations = new long[CAPACITY];
+    // Total number of spans recorded, the next one goes at sRecorded % CAPACITY.
+    private static long sRecorded;
+
+    // Totals per span, guarded by sLock.
+    private static final int[] sCounts = new int[SPAN_NAMES.length];
+    private static final long[] sTotals = new long[SPAN_NAMES.length];
+    private static final long[] sMaxes = new long[SPAN_NAMES.length];
+
+    // Span starts are dumped relative to this, which is close enough to the process start.
+    private static final long sBaseNanos = System.nanoTime();
+
+    private LauncherTrace() {
+    }
+
+    /**
+     * Returns the start time to pass to {@link #end}.
+     */
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a span which started at {@code start}, as returned by {@link #begin}, and ends now.
+     *
+     * @param arg a span specific value, e.g. the number of items processed.
+     */
+    static void end(int span, long start, int arg) {
+        final long end = System.nanoTime();
+        final long threadId = Thread.currentThread().getId();
+        synchronized (sLock) {
+            final int i = (int) (sRecorded % CAPACITY);
+            sSpans[i] = span;
+            sArgs[i] = arg;
+            sThreads[i] = threadId;
+            sStarts[i] = start;
+            sDurations[i] = end - start;
+            sRecorded++;
+
+            sCounts[span]++;
+            sTotals[span] += end - start;
+            if (end - start > sMaxes[span]) {
+                sMaxes[span] = end - start;
+            }
+        }
+    }
+
+    /**
+     * Dumps the totals per span and the most recent spans.
+     */
+    static void dump(String prefix, PrintWriter writer) {
+        synchronized (sLock) {
+            writer.println(prefix + "Trace: " + sRecorded + " spans recorded");
+            for (int span = 0; span < SPAN_NAMES.length; span++) {
+                if (sCounts[span] == 0) {
+                    continue;
+                }
+                writer.println(prefix + "  " + SPAN_NAMES[span] + ": count=" + sCounts[span]
+                        + " total=" + toMillis(sTotals[span]) + "ms"
+                        + " avg=" + toMillis(sTotals[span] / sCounts[span]) + "ms"
+                        + " max=" + toMillis(sMaxes[span]) + "ms");
+            }
+
+            final long first = Math.max(Math.max(0, sRecorded - CAPACITY),
+                    sRecorded - DUMP_RECENT);
+            if (first < sRecorded) {
+                writer.println(prefix + "  Recent spans:");
+            }
+            for (long n = first; n < sRecorded; n++) {
+                final int i = (int) (n % CAPACITY);
+                writer.println(prefix + "    +" + toMillis(sStarts[i] - sBaseNanos) + "ms "
+                        + SPAN_NAMES[sSpans[i]] + " " + toMillis(sDurations[i]) + "ms"
+                        + " arg=" + sArgs[i] + " thread=" + sThreads[i]);
+            }
+        }
+    }
+
+    /**
+     * Dumps all the spans in the ring as comma separated values, one span per line after a
+     * header line, with the times in microseconds. The first line identifies the build so that
+     * dumps of different builds can be compared.
+     */
+    static void dumpCsv(PrintWriter writer) {
+        synchronized (sLock) {
+            writer.println("# " + Build.FINGERPRINT + " recorded=" + sRecorded);
+            writer.println("span,start_us,duration_us,arg,thread");
+            for (long n = Math.max(0, sRecorded - CAPACITY); n < sRecorded; n++) {
+                final int i = (int) (n % CAPACITY);
+                writer.println(SPAN_NAMES[sSpans[i]] + "," + (sStarts[i] - sBaseNanos) / 1000
+                        + "," + sDurations[i] / 1000 + "," + sArgs[i] + "," + sThreads[i]);
+            }
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1000000f);
+    }
+}
@@ -72,7 +72,7 @@ public class PagedViewIcon extends TextView {
 
         mIcon = info.iconBitmap;
         mPressedCallback = cb;
-        Drawable icon = Utilities.createIconDrawable(mIcon);
+        Drawable icon = Utilities.createIconDrawable(getContext(), info);
         icon.setBounds(0, 0, grid.allAppsIconSizePx, grid.allAppsIconSizePx);
         setCompoundDrawables(null, icon, null, null);
         setCompoundDrawablePadding(grid.iconDrawablePaddingPx);
@@ -107,16 +107,24 @@ public class PagedViewWidget extends LinearLayout {
         if (sDeletePreviewsWhenDetachedFromWindow) {
             final ImageView image = (ImageView) findViewById(R.id.widget_preview);
             if (image != null) {
-                FastBitmapDrawable preview = (FastBitmapDrawable) image.getDrawable();
-                if (sRecyclePreviewsWhenDetachedFromWindow &&
-                        mInfo != null && preview != null && preview.getBitmap() != null) {
-                    mWidgetPreviewLoader.recycleBitmap(mInfo, preview.getBitmap());
+                if (sRecyclePreviewsWhenDetachedFromWindow) {
+                    releasePreview(image);
                 }
                 image.setImageDrawable(null);
             }
         }
     }
 
+    private void releasePreview(ImageView image) {
+        if (!(image.getDrawable() instanceof FastBitmapDrawable)) {
+            return;
+        }
+        FastBitmapDrawable preview = (FastBitmapDrawable) image.getDrawable();
+        if (mInfo != null && mWidgetPreviewLoader != null && preview.getBitmap() != null) {
+            mWidgetPreviewLoader.recycleBitmap(mInfo, preview.getBitmap());
+        }
+    }
+
     public void applyFromAppWidgetProviderInfo(AppWidgetProviderInfo info,
             int maxWidth, int[] cellSpan, WidgetPreviewLoader loader) {
         LauncherAppState app = LauncherAppState.getInstance();
@@ -161,10 +169,15 @@ public class PagedViewWidget extends LinearLayout {
         return maxSize;
     }
 
+    /**
+     * Shows the preview, which was obtained from the {@link WidgetPreviewLoader} and is given
+     * back to it once replaced or detached.
+     */
     void applyPreview(FastBitmapDrawable preview, int index) {
         final PagedViewWidgetImageView image =
             (PagedViewWidgetImageView) findViewById(R.id.widget_preview);
         if (preview != null) {
+            releasePreview(image);
             image.mAllowRequestLayout = false;
             image.setImageDrawable(preview);
             if (mIsAppWidget) {
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Prefix index over names, for as you type search. Every item is indexed under its name, the
+ * rest of its name from the start of each word, and the lookup keys given by the
+ * {@link LookupKeyProvider}, so that a query matches the start of any of them.
+ *
+ * Adding an item only records its name. The search keys, and the lookup keys in particular,
+ * can be slow to make, so they are made on the indexer given to the constructor, without
+ * holding the lock of the index. Until then the item is only matched by its name and the start
+ * of its words, so that queries never wait for the keys to be made.
+ *
+ * Plain Java, thread safe.
+ */
+class PrefixSearchIndex<T> {
+
+    /**
+     * Provides the additional keys a name can be looked up by, e.g. its transliterations.
+     */
+    interface LookupKeyProvider {
+        /**
+         * Returns the additional keys for the name, or null if there are none.
+         */
+        Iterator<String> getLookupKeys(String name);
+    }
+
+    private final LookupKeyProvider mLookupKeyProvider;
+    private final Executor mIndexer;
+    private final Runnable mIndexPending = new Runnable() {
+        @Override
+        public void run() {
+            indexPending();
+        }
+    };
+
+    // Whether mIndexPending was given to mIndexer and has not run yet. Guarded by this.
+    private boolean mIndexScheduled;
+    // Items whose search keys are not made yet, with their name. Guarded by this.
+    private final IdentityHashMap<T, String> mPending = new IdentityHashMap<T, String>();
+    // Items by search key, guarded by this.
+    private final TreeMap<String, ArrayList<T>> mItems = new TreeMap<String, ArrayList<T>>();
+    // Keys of each indexed item, so that it can be removed. Guarded by this.
+    private final IdentityHashMap<T, ArrayList<String>> mKeys =
+            new IdentityHashMap<T, ArrayList<String>>();
+
+    /**
+     * @param indexer runs the making of the search keys of the items added, or null to only
+     *            make them when {@link #indexPending} is called.
+     */
+    PrefixSearchIndex(LookupKeyProvider lookupKeyProvider, Executor indexer) {
+        mLookupKeyProvider = lookupKeyProvider;
+        mIndexer = indexer;
+    }
+
+    /**
+     * Adds the item, or updates its name if it was added already.
+     */
+    void add(T item, CharSequence name) {
+        synchronized (this) {
+            removeKeysLocked(item);
+            mPending.put(item, name != null ? name.toString() : "");
+            if (mIndexer == null || mIndexScheduled) {
+                return;
+            }
+            mIndexScheduled = true;
+        }
+        mIndexer.execute(mIndexPending);
+    }
+
+    synchronized void remove(T item) {
+        mPending.remove(item);
+        removeKeysLocked(item);
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+        mItems.clear();
+        mKeys.clear();
+    }
+
+    /**
+     * Returns the items with a search key starting with the query, sorted with the comparator
+     * if there is one, or in no particular order. The items whose search keys are not made yet
+     * are only matched by their name and the start of its words.
+     */
+    ArrayList<T> query(String query, Comparator<T> comparator) {
+        final ArrayList<T> result = new ArrayList<T>();
+        final String prefix = normalize(query);
+        if (prefix.isEmpty()) {
+            return result;
+        }
+
+        final IdentityHashMap<T, Boolean> found = new IdentityHashMap<T, Boolean>();
+        synchronized (this) {
+            for (ArrayList<T> items : mItems.subMap(prefix, true,
+                    prefix + Character.MAX_VALUE, false).values()) {
+                for (T item : items) {
+                    if (found.put(item, Boolean.TRUE) == null) {
+                        result.add(item);
+                    }
+                }
+            }
+            for (Map.Entry<T, String> entry : mPending.entrySet()) {
+                if (nameMatches(entry.getValue(), prefix)) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        if (comparator != null) {
+            Collections.sort(result, comparator);
+        }
+        return result;
+    }
+
+    /**
+     * Makes the search keys of the items added since the last call. Called on the indexer, or
+     * directly when there is none.
+     */
+    void indexPending() {
+        final ArrayList<T> items;
+        final ArrayList<String> names;
+        synchronized (this) {
+            mIndexScheduled = false;
+            items = new ArrayList<T>(mPending.keySet());
+            names = new ArrayList<String>(mPending.values());
+        }
+
+        // Without the lock, the lookup keys can take a while.
+        final ArrayList<ArrayList<String>> keys = new ArrayList<ArrayList<String>>(items.size());
+        for (String name : names) {
+            keys.add(getSearchKeys(name, mLookupKeyProvider));
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < items.size(); i++) {
+                final T item = items.get(i);
+                if (mPending.get(item) != names.get(i)) {
+                    // Removed or renamed meanwhile, a renamed item is indexed by the next call.
+                    continue;
+                }
+                mPending.remove(item);
+                addKeysLocked(item, keys.get(i));
+            }
+        }
+    }
+
+    private void addKeysLocked(T item, ArrayList<String> keys) {
+        for (String key : keys) {
+            ArrayList<T> items = mItems.get(key);
+            if (items == null) {
+                items = new ArrayList<T>(1);
+                mItems.put(key, items);
+            }
+            items.add(item);
+        }
+        mKeys.put(item, keys);
+    }
+
+    private void removeKeysLocked(T item) {
+        final ArrayList<String> keys = mKeys.remove(item);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            ArrayList<T> items = mItems.get(key);
+            if (items == null) {
+                continue;
+            }
+            for (int i = items.size() - 1; i >= 0; i--) {
+                if (items.get(i) == item) {
+                    items.remove(i);
+                }
+            }
+            if (items.isEmpty()) {
+                mItems.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the normalized search keys of the name: the name, the rest of the name from the
+     * start of each word, and the lookup keys from the provider, if any.
+     */
+    static ArrayList<String> getSearchKeys(String name, LookupKeyProvider lookupKeyProvider) {
+        final ArrayList<String> keys = new ArrayList<String>();
+        if (name == null) {
+            return keys;
+        }
+        name = name.trim();
+        if (name.isEmpty()) {
+            return keys;
+        }
+
+        addKey(keys, name);
+        for (int i = 1; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i - 1))
+                    && !Character.isWhitespace(name.charAt(i))) {
+                addKey(keys, name.substring(i));
+            }
+        }
+
+        final Iterator<String> lookupKeys = lookupKeyProvider != null
+                ? lookupKeyProvider.getLookupKeys(name) : null;
+        if (lookupKeys != null) {
+            while (lookupKeys.hasNext()) {
+                addKey(keys, lookupKeys.next());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns whether the normalized name, or the rest of it from the start of a word, starts
+     * with the normalized prefix.
+     */
+    static boolean nameMatches(String name, String prefix) {
+        name = normalize(name);
+        for (int i = 0; i <= name.length() - prefix.length(); i++) {
+            if ((i == 0 || (Character.isWhitespace(name.charAt(i - 1))
+                    && !Character.isWhitespace(name.charAt(i))))
+                    && name.startsWith(prefix, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addKey(ArrayList<String> keys, String key) {
+        key = normalize(key);
+        if (!key.isEmpty() && !keys.contains(key)) {
+            keys.add(key);
+        }
+    }
+
+    static String normalize(String key) {
+        return key == null ? "" : key.trim().toLowerCase(Locale.ROOT);
+    }
+}
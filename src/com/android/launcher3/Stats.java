@@ -20,11 +20,22 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Keeps the launch count of every intent launched from the launcher. The counts live in a hash
+ * index for constant time lookups. The saved counts are loaded on a background thread. Launch
+ * events are appended to a buffered log, and the counts are snapshotted to disk, on the same
+ * thread a few seconds after a launch rather than on the UI thread for every launch.
+ */
 public class Stats {
     private static final boolean DEBUG_BROADCASTS = false;
     private static final String TAG = "Launcher3/Stats";
@@ -46,35 +57,51 @@ public class Stats {
     private static final int STATS_VERSION = 1;
     private static final int INITIAL_STATS_SIZE = 100;
 
-    // TODO: delayed/batched writes
-    private static final boolean FLUSH_IMMEDIATELY = true;
+    // Launches are written to disk this long after the first unsaved launch.
+    private static final int FLUSH_DELAY_MS = 5000;
+
+    // The launch log is started over past this size. The counts are kept in the stats file, so
+    // only the oldest individual launch events are lost.
+    private static final int MAX_LAUNCH_LOG_SIZE = 256 * 1024;
+
+    private static Handler sWorker;
 
     private final Launcher mLauncher;
 
-    DataOutputStream mLog;
+    // Launch count by flattened intent. The saved counts are added on the stats thread once
+    // loaded, the launches on the UI thread, see addCount().
+    private final ConcurrentHashMap<String, Integer> mCounts =
+            new ConcurrentHashMap<String, Integer>(INITIAL_STATS_SIZE);
 
-    ArrayList<String> mIntents;
-    ArrayList<Integer> mHistogram;
+    // < only access on the stats thread >
+    private DataOutputStream mLog;
+    private boolean mStatsDirty;
+    private boolean mFlushScheduled;
+    // </ only access on the stats thread >
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            writePendingStats();
+        }
+    };
 
     public Stats(Launcher launcher) {
         mLauncher = launcher;
 
-        loadStats();
-
-        if (LOCAL_LAUNCH_LOG) {
-            try {
-                mLog = new DataOutputStream(mLauncher.openFileOutput(
-                        LauncherFiles.LAUNCHES_LOG, Context.MODE_APPEND));
-                mLog.writeInt(LOG_TAG_VERSION);
-                mLog.writeInt(LOG_VERSION);
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "unable to create stats log: " + e);
-                mLog = null;
-            } catch (IOException e) {
-                Log.e(TAG, "unable to write to stats log: " + e);
-                mLog = null;
+        // Loaded on the stats thread, after the writes still pending from a previous instance,
+        // e.g. before the activity was recreated. The launches recorded meanwhile are added to
+        // the saved counts.
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                loadStats();
+                if (LOCAL_LAUNCH_LOG) {
+                    openLog(Context.MODE_APPEND);
+                }
             }
-        }
+        });
 
         if (DEBUG_BROADCASTS) {
             launcher.registerReceiver(
@@ -93,12 +120,15 @@ public class Stats {
     }
 
     public void incrementLaunch(String intentStr) {
-        int pos = mIntents.indexOf(intentStr);
-        if (pos < 0) {
-            mIntents.add(intentStr);
-            mHistogram.add(1);
-        } else {
-            mHistogram.set(pos, mHistogram.get(pos) + 1);
+        addCount(intentStr, 1);
+    }
+
+    private void addCount(String intentStr, int delta) {
+        while (true) {
+            Integer count = mCounts.putIfAbsent(intentStr, delta);
+            if (count == null || mCounts.replace(intentStr, count, count + delta)) {
+                return;
+            }
         }
     }
 
@@ -106,14 +136,8 @@ public class Stats {
         intent = new Intent(intent);
         intent.setSourceBounds(null);
 
-        final String flat = intent.toUri(0);
-
-        int pos = mIntents.indexOf(flat);
-        if (pos < 0) {
-            return 0;
-        } else {
-            return mHistogram.get(pos);
-        }
+        Integer count = mCounts.get(intent.toUri(0));
+        return count == null ? 0 : count;
     }
 
     public void recordLaunch(Intent intent) {
@@ -137,46 +161,116 @@ public class Stats {
 
         incrementLaunch(flat);
 
-        if (FLUSH_IMMEDIATELY) {
+        final long time = System.currentTimeMillis();
+        final short container = shortcut == null ? 0 : (short) shortcut.container;
+        final short screen = shortcut == null ? 0 : (short) shortcut.screenId;
+        final short cellX = shortcut == null ? 0 : (short) shortcut.cellX;
+        final short cellY = shortcut == null ? 0 : (short) shortcut.cellY;
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                mStatsDirty = true;
+                if (LOCAL_LAUNCH_LOG && mLog != null) {
+                    try {
+                        mLog.writeInt(LOG_TAG_LAUNCH);
+                        mLog.writeLong(time);
+                        mLog.writeShort(container);
+                        mLog.writeShort(screen);
+                        mLog.writeShort(cellX);
+                        mLog.writeShort(cellY);
+                        mLog.writeUTF(flat);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    getWorker().postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the pending launches to disk without waiting for the flush delay, typically when
+     * the launcher goes to the background.
+     */
+    public void flush() {
+        final Handler worker = getWorker();
+        worker.removeCallbacks(mFlushRunnable);
+        worker.post(mFlushRunnable);
+    }
+
+    /**
+     * Writes the pending launches to disk and closes the launch log. Must be called when the
+     * launcher is destroyed, so that the log isn't appended to by two instances.
+     */
+    public void close() {
+        final Handler worker = getWorker();
+        worker.removeCallbacks(mFlushRunnable);
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                mFlushScheduled = false;
+                writePendingStats();
+                if (mLog != null) {
+                    try {
+                        mLog.close();
+                    } catch (IOException e) { }
+                    mLog = null;
+                }
+            }
+        });
+    }
+
+    private void writePendingStats() {
+        if (mStatsDirty) {
+            mStatsDirty = false;
             saveStats();
         }
-
-        if (LOCAL_LAUNCH_LOG && mLog != null) {
+        if (mLog != null) {
             try {
-                mLog.writeInt(LOG_TAG_LAUNCH);
-                mLog.writeLong(System.currentTimeMillis());
-                if (shortcut == null) {
-                    mLog.writeShort(0);
-                    mLog.writeShort(0);
-                    mLog.writeShort(0);
-                    mLog.writeShort(0);
-                } else {
-                    mLog.writeShort((short) shortcut.container);
-                    mLog.writeShort((short) shortcut.screenId);
-                    mLog.writeShort((short) shortcut.cellX);
-                    mLog.writeShort((short) shortcut.cellY);
-                }
-                mLog.writeUTF(flat);
-                if (FLUSH_IMMEDIATELY) {
-                    mLog.flush(); // TODO: delayed writes
-                }
+                mLog.flush();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.e(TAG, "unable to write to stats log: " + e);
+            }
+            if (mLauncher.getFileStreamPath(LauncherFiles.LAUNCHES_LOG).length()
+                    > MAX_LAUNCH_LOG_SIZE) {
+                try {
+                    mLog.close();
+                } catch (IOException e) { }
+                openLog(Context.MODE_PRIVATE);
             }
         }
     }
 
+    private void openLog(int mode) {
+        try {
+            mLog = new DataOutputStream(new BufferedOutputStream(mLauncher.openFileOutput(
+                    LauncherFiles.LAUNCHES_LOG, mode)));
+            mLog.writeInt(LOG_TAG_VERSION);
+            mLog.writeInt(LOG_VERSION);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "unable to create stats log: " + e);
+            mLog = null;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write to stats log: " + e);
+            mLog = null;
+        }
+    }
+
     private void saveStats() {
         DataOutputStream stats = null;
         try {
-            stats = new DataOutputStream(mLauncher.openFileOutput(
-                    LauncherFiles.STATS_LOG + ".tmp", Context.MODE_PRIVATE));
+            stats = new DataOutputStream(new BufferedOutputStream(mLauncher.openFileOutput(
+                    LauncherFiles.STATS_LOG + ".tmp", Context.MODE_PRIVATE)));
             stats.writeInt(STATS_VERSION);
-            final int N = mHistogram.size();
-            stats.writeInt(N);
-            for (int i=0; i<N; i++) {
-                stats.writeUTF(mIntents.get(i));
-                stats.writeInt(mHistogram.get(i));
+            // Snapshot the counts, the UI thread may record launches while this is written.
+            final HashMap<String, Integer> counts = new HashMap<String, Integer>(mCounts);
+            stats.writeInt(counts.size());
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                stats.writeUTF(entry.getKey());
+                stats.writeInt(entry.getValue());
             }
             stats.close();
             stats = null;
@@ -196,19 +290,17 @@ public class Stats {
     }
 
     private void loadStats() {
-        mIntents = new ArrayList<String>(INITIAL_STATS_SIZE);
-        mHistogram = new ArrayList<Integer>(INITIAL_STATS_SIZE);
         DataInputStream stats = null;
         try {
-            stats = new DataInputStream(mLauncher.openFileInput(LauncherFiles.STATS_LOG));
+            stats = new DataInputStream(new BufferedInputStream(
+                    mLauncher.openFileInput(LauncherFiles.STATS_LOG)));
             final int version = stats.readInt();
             if (version == STATS_VERSION) {
                 final int N = stats.readInt();
                 for (int i=0; i<N; i++) {
                     final String pkg = stats.readUTF();
                     final int count = stats.readInt();
-                    mIntents.add(pkg);
-                    mHistogram.add(count);
+                    addCount(pkg, count);
                 }
             }
         } catch (FileNotFoundException e) {
@@ -224,4 +316,14 @@ public class Stats {
             }
         }
     }
+
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            HandlerThread thread = new HandlerThread("launcher-stats",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new Handler(thread.getLooper());
+        }
+        return sWorker;
+    }
 }
@@ -91,6 +91,9 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
         boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
 
         if (intent != null && name != null) {
+            // Apply the pending writes first, so that a shortcut installed just before is
+            // found and removed, and the queue doesn't write to the rows deleted here.
+            LauncherModel.flushItemWrites();
             final ContentResolver cr = context.getContentResolver();
             Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
                 new String[] { LauncherSettings.Favorites._ID, LauncherSettings.Favorites.INTENT },
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.LruCache;
+
+/**
+ * Renders the unread count badges drawn over the app icons, see
+ * {@link FastBitmapDrawable#setBadge}. A badge only depends on its count, so each one is
+ * rendered once and shared by all the icons showing that count, and the app icons themselves
+ * never need to be re-rendered when a count changes.
+ *
+ * The badges are sized in icon bitmap pixels, to be drawn at the top right corner of the icon
+ * and scaled along with it.
+ */
+class UnreadBadgeCache {
+
+    // Counts above this are all shown as "999+".
+    private static final int MAX_COUNT = 1000;
+    private static final int CACHE_SIZE = 32;
+
+    private static final LruCache<Integer, Bitmap> sBadges =
+            new LruCache<Integer, Bitmap>(CACHE_SIZE);
+
+    /**
+     * Returns the badge for the count, or null if no badge should be shown. Can be called from
+     * any thread.
+     */
+    static Bitmap getBadge(Context context, int count) {
+        if (!LauncherApplication.LAUNCHER_SHOW_UNREAD_NUMBER || count <= 0) {
+            return null;
+        }
+        count = Math.min(count, MAX_COUNT);
+        Bitmap badge = sBadges.get(count);
+        if (badge == null) {
+            badge = createBadge(context.getResources(), count);
+            sBadges.put(count, badge);
+        }
+        return badge;
+    }
+
+    private static Bitmap createBadge(Resources resources, int count) {
+        float textsize = resources.getDimension(R.dimen.infomation_count_textsize);
+        Paint countPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+        countPaint.setColor(Color.WHITE);
+        countPaint.setTextSize(textsize);
+
+        String text = count >= MAX_COUNT ? "999+" : String.valueOf(count);
+
+        float countHeight = resources.getDimension(R.dimen.infomation_count_height);
+        float padding = resources.getDimension(R.dimen.infomation_count_padding);
+        float radius = resources.getDimension(R.dimen.infomation_count_circle_radius);
+        int textWidth = (int) (countPaint.measureText(text) + 1);
+        float width = textWidth + padding * 2;
+        width = Math.max(width,
+                resources.getDimensionPixelSize(R.dimen.infomation_count_min_width));
+
+        // Keep the 1px margin the badge used to have from the top right corner of the icon.
+        final Bitmap badge = Bitmap.createBitmap((int) Math.ceil(width) + 2,
+                (int) Math.ceil(countHeight) + 2, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(badge);
+
+        RectF rect = new RectF(1, 1, width + 1, countHeight + 1);
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setColor(resources.getColor(R.color.infomation_count_circle_color));
+        canvas.drawRoundRect(rect, radius, radius, paint);
+
+        canvas.drawText(text, 1 + (width - textWidth) / 2, textsize, countPaint);
+        return badge;
+    }
+}
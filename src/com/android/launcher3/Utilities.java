@@ -38,7 +38,6 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PaintFlagsDrawFilter;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.PaintDrawable;
@@ -64,13 +63,24 @@ public final class Utilities {
     private static int sIconWidth = -1;
     private static int sIconHeight = -1;
 
-    private static final Rect sOldBounds = new Rect();
     private static final Canvas sCanvas = new Canvas();
 
     static {
         sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
                 Paint.FILTER_BITMAP_FLAG));
     }
+
+    // Icons are rendered from several loader threads at once, so each thread draws into its
+    // own canvas instead of serializing on sCanvas.
+    private static final ThreadLocal<Canvas> sIconCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            Canvas canvas = new Canvas();
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+            return canvas;
+        }
+    };
     static int sColors[] = { 0xffff0000, 0xff00ff00, 0xff0000ff };
     static int sColorIndex = 0;
 
@@ -82,48 +92,6 @@ public final class Utilities {
     static final String FORCE_ENABLE_ROTATION_PROPERTY = "launcher_force_rotate";
     public static boolean sForceEnableRotation = isPropertyEnabled(FORCE_ENABLE_ROTATION_PROPERTY);
 
-   static Bitmap createIconBitmap(Drawable icon, Context context, int count) {
-       Bitmap b = createIconBitmap(icon, context);
-
-       if (!LauncherApplication.LAUNCHER_SHOW_UNREAD_NUMBER || count <= 0) {
-           return b;
-       }
-
-       int textureWidth = b.getWidth();
-       final Resources resources = context.getResources();
-       final Canvas canvas = sCanvas;
-       canvas.setBitmap(b);
-
-       float textsize = resources.getDimension(R.dimen.infomation_count_textsize);
-       Paint countPaint = new Paint(Paint.ANTI_ALIAS_FLAG|Paint.DEV_KERN_TEXT_FLAG);
-       countPaint.setColor(Color.WHITE);
-       countPaint.setTextSize(textsize);
-
-       String text = String.valueOf(count);
-       if (count >= 1000) {
-           text = "999+";
-       }
-
-       float count_hight = resources.getDimension(R.dimen.infomation_count_height);
-       float padding = resources.getDimension(R.dimen.infomation_count_padding);
-       float radius = resources.getDimension(R.dimen.infomation_count_circle_radius);
-       int  textwidth = (int) (countPaint.measureText(text) + 1);
-       float width =textwidth + padding * 2;
-       width = Math.max(width, resources.getDimensionPixelSize(R.dimen.infomation_count_min_width));
-
-       RectF rect = new RectF(textureWidth - width -1, 1, textureWidth - 1, count_hight + 1);
-       Paint paint = new Paint();
-       paint.setAntiAlias(true);
-       paint.setColor(resources.getColor(R.color.infomation_count_circle_color));
-       canvas.drawRoundRect(rect , radius, radius, paint);
-
-       float x = textureWidth - (width + textwidth ) / 2 - 1;
-       float y = textsize;
-       canvas.drawText(text, x, y, countPaint);
-
-       return b;
-    }
-
     /**
      * Returns a FastBitmapDrawable with the icon, accurately sized.
      */
@@ -134,6 +102,16 @@ public final class Utilities {
         return d;
     }
 
+    /**
+     * Returns a FastBitmapDrawable with the icon of the app and its unread badge, accurately
+     * sized.
+     */
+    static FastBitmapDrawable createIconDrawable(Context context, AppInfo info) {
+        FastBitmapDrawable d = createIconDrawable(info.iconBitmap);
+        d.setBadge(UnreadBadgeCache.getBadge(context, info.unreadNum));
+        return d;
+    }
+
     /**
      * Resizes an icon drawable to the correct icon size.
      */
@@ -202,65 +180,65 @@ public final class Utilities {
             if (sIconWidth == -1) {
                 initStatics(context);
             }
+        }
 
-            int width = sIconWidth;
-            int height = sIconHeight;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+        int width = sIconWidth;
+        int height = sIconHeight;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-            if (sourceWidth > 0 && sourceHeight > 0) {
-                // Scale the icon proportionally to the icon dimensions
-                final float ratio = (float) sourceWidth / sourceHeight;
-                if (sourceWidth > sourceHeight) {
-                    height = (int) (width / ratio);
-                } else if (sourceHeight > sourceWidth) {
-                    width = (int) (height * ratio);
-                }
+        }
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Scale the icon proportionally to the icon dimensions
+            final float ratio = (float) sourceWidth / sourceHeight;
+            if (sourceWidth > sourceHeight) {
+                height = (int) (width / ratio);
+            } else if (sourceHeight > sourceWidth) {
+                width = (int) (height * ratio);
             }
+        }
 
-            // no intrinsic size --> use default size
-            int textureWidth = sIconWidth;
-            int textureHeight = sIconHeight;
-
-            final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
-
-            final int left = (textureWidth-width) / 2;
-            final int top = (textureHeight-height) / 2;
-
-            @SuppressWarnings("all") // suppress dead code warning
-            final boolean debug = false;
-            if (debug) {
-                // draw a big box for the icon for debugging
-                canvas.drawColor(sColors[sColorIndex]);
-                if (++sColorIndex >= sColors.length) sColorIndex = 0;
-                Paint debugPaint = new Paint();
-                debugPaint.setColor(0xffcccc00);
-                canvas.drawRect(left, top, left+width, top+height, debugPaint);
-            }
+        // no intrinsic size --> use default size
+        int textureWidth = sIconWidth;
+        int textureHeight = sIconHeight;
+
+        final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = sIconCanvas.get();
+        canvas.setBitmap(bitmap);
+
+        final int left = (textureWidth-width) / 2;
+        final int top = (textureHeight-height) / 2;
+
+        @SuppressWarnings("all") // suppress dead code warning
+        final boolean debug = false;
+        if (debug) {
+            // draw a big box for the icon for debugging
+            canvas.drawColor(sColors[sColorIndex]);
+            if (++sColorIndex >= sColors.length) sColorIndex = 0;
+            Paint debugPaint = new Paint();
+            debugPaint.setColor(0xffcccc00);
+            canvas.drawRect(left, top, left+width, top+height, debugPaint);
+        }
 
-            sOldBounds.set(icon.getBounds());
-            icon.setBounds(left, top, left+width, top+height);
-            icon.draw(canvas);
-            icon.setBounds(sOldBounds);
-            canvas.setBitmap(null);
+        final Rect oldBounds = icon.copyBounds();
+        icon.setBounds(left, top, left+width, top+height);
+        icon.draw(canvas);
+        icon.setBounds(oldBounds);
+        canvas.setBitmap(null);
 
-            return bitmap;
-        }
+        return bitmap;
     }
 
     /**
@@ -371,6 +349,18 @@ public final class Utilities {
         sIconWidth = sIconHeight = widthPx;
     }
 
+    /**
+     * Returns the size in pixels of the bitmaps produced by {@link #createIconBitmap}.
+     */
+    static int getIconBitmapSize(Context context) {
+        synchronized (sCanvas) { // we share the statics :-(
+            if (sIconWidth == -1) {
+                initStatics(context);
+            }
+            return sIconWidth;
+        }
+    }
+
     public static void scaleRect(Rect r, float scale) {
         if (scale != 1.0f) {
             r.left = (int) (r.left * scale + 0.5f);
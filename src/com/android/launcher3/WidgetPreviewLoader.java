@@ -1,5 +1,6 @@
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentValues;
@@ -29,17 +30,19 @@ import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.util.Log;
+import android.util.SparseArray;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -112,6 +115,41 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * The encoding used for the previews stored in the CacheDb. Any format BitmapFactory can
+     * decode works, as reading doesn't depend on it.
+     */
+    private static final class PreviewFormat {
+        final Bitmap.CompressFormat compressFormat;
+        final int quality;
+
+        PreviewFormat(Resources res) {
+            String name = res.getString(R.string.config_widgetPreviewFormat);
+            if ("webp".equals(name)) {
+                compressFormat = Bitmap.CompressFormat.WEBP;
+            } else {
+                if (!"png".equals(name)) {
+                    Log.w(TAG, "Unknown widget preview format " + name + ", using png");
+                }
+                compressFormat = Bitmap.CompressFormat.PNG;
+            }
+            quality = res.getInteger(R.integer.config_widgetPreviewQuality);
+        }
+
+        /**
+         * Returns a string that changes whenever previews encoded before would be stale.
+         */
+        String getVersion() {
+            return compressFormat.name() + ":" + quality;
+        }
+
+        byte[] encode(Bitmap preview) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            preview.compress(compressFormat, quality, stream);
+            return stream.toByteArray();
+        }
+    }
+
     private static final String TAG = "WidgetPreviewLoader";
     private static final String ANDROID_INCREMENTAL_VERSION_NAME_KEY = "android.incremental.version";
 
@@ -131,8 +169,32 @@ public class WidgetPreviewLoader {
     private final PaintCache mDefaultAppWidgetPreviewPaint = new PaintCache();
     private final BitmapFactoryOptionsCache mCachedBitmapFactoryOptions = new BitmapFactoryOptionsCache();
 
-    private final HashMap<String, WeakReference<Bitmap>> mLoadedPreviews = new HashMap<>();
-    private final ArrayList<SoftReference<Bitmap>> mUnusedBitmaps = new ArrayList<>();
+    private static class PreviewEntry {
+        final Bitmap bitmap;
+        // Views showing the preview plus pending writes of it, it can't be reused until zero.
+        int users;
+
+        PreviewEntry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    // Previews in memory, least recently used first. Also guards the pool and the counters.
+    private final LinkedHashMap<String, PreviewEntry> mLoadedPreviews =
+            new LinkedHashMap<String, PreviewEntry>(16, 0.75f, true);
+    // Bitmaps no longer used by any preview, by size, reused to decode or render new previews.
+    private final SparseArray<ArrayList<Bitmap>> mUnusedBitmaps =
+            new SparseArray<ArrayList<Bitmap>>();
+    private final long mMaxPreviewBytes;
+    private final long mMaxPoolBytes;
+    private long mPreviewBytes;
+    private long mPoolBytes;
+    private int mHitCount;
+    private int mDecodeCount;
+    private int mGenerateCount;
+    private int mReuseCount;
+    private int mAllocationCount;
+    private int mEvictionCount;
 
     private final Context mContext;
     private final int mAppIconSize;
@@ -148,6 +210,7 @@ public class WidgetPreviewLoader {
 
 
     private CacheDb mDb;
+    private final PreviewFormat mFormat;
 
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
 
@@ -162,10 +225,21 @@ public class WidgetPreviewLoader {
 
         mDb = app.getWidgetPreviewCacheDb();
 
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final Resources res = context.getResources();
+        mMaxPreviewBytes = (long) am.getMemoryClass() * 1024 * 1024 / 100
+                * res.getInteger(R.integer.config_widgetPreviewCacheMemoryPercent);
+        mMaxPoolBytes = mMaxPreviewBytes / 100
+                * res.getInteger(R.integer.config_widgetPreviewPoolPercent);
+
         SharedPreferences sp = context.getSharedPreferences(
                 LauncherAppState.getSharedPreferencesKey(), Context.MODE_PRIVATE);
+        mFormat = new PreviewFormat(res);
         final String lastVersionName = sp.getString(ANDROID_INCREMENTAL_VERSION_NAME_KEY, null);
-        final String versionName = android.os.Build.VERSION.INCREMENTAL;
+        // Changing the storage format also drops the previews stored in the old one
+        final String versionName = android.os.Build.VERSION.INCREMENTAL + ";"
+                + mFormat.getVersion();
         final boolean isLollipopOrGreater = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
         if (!versionName.equals(lastVersionName)) {
             try {
@@ -201,6 +275,24 @@ public class WidgetPreviewLoader {
         mWidgetSpacingLayout = widgetSpacingLayout;
     }
 
+    /**
+     * Returns the preview if it is already loaded in memory, without touching the disk. Like
+     * {@link #getPreview}, the caller must give it back with {@link #recycleBitmap} once it is
+     * no longer shown.
+     */
+    public Bitmap getCachedPreview(Object o) {
+        final String name = getObjectName(o);
+        synchronized(mLoadedPreviews) {
+            PreviewEntry entry = mLoadedPreviews.get(name);
+            if (entry == null) {
+                return null;
+            }
+            entry.users++;
+            mHitCount++;
+            return entry.bitmap;
+        }
+    }
+
     public Bitmap getPreview(final Object o) {
         final String name = getObjectName(o);
         final String packageName = getObjectPackage(o);
@@ -211,57 +303,41 @@ public class WidgetPreviewLoader {
                 return null;
             }
         }
-        synchronized(mLoadedPreviews) {
-            // check if it exists in our existing cache
-            if (mLoadedPreviews.containsKey(name)) {
-                WeakReference<Bitmap> bitmapReference = mLoadedPreviews.get(name);
-                Bitmap bitmap = bitmapReference.get();
-                if (bitmap != null) {
-                    return bitmap;
-                }
-            }
+        Bitmap cached = getCachedPreview(o);
+        if (cached != null) {
+            return cached;
         }
 
-        Bitmap unusedBitmap = null;
-        synchronized(mUnusedBitmaps) {
-            // not in cache; we need to load it from the db
-            while (unusedBitmap == null && mUnusedBitmaps.size() > 0) {
-                Bitmap candidate = mUnusedBitmaps.remove(0).get();
-                if (candidate != null && candidate.isMutable() &&
-                        candidate.getWidth() == mPreviewBitmapWidth &&
-                        candidate.getHeight() == mPreviewBitmapHeight) {
-                    unusedBitmap = candidate;
-                }
-            }
-            if (unusedBitmap != null) {
-                final Canvas c = mCachedAppWidgetPreviewCanvas.get();
-                c.setBitmap(unusedBitmap);
-                c.drawColor(0, PorterDuff.Mode.CLEAR);
-                c.setBitmap(null);
-            }
-        }
-
-        if (unusedBitmap == null) {
-            unusedBitmap = Bitmap.createBitmap(mPreviewBitmapWidth, mPreviewBitmapHeight,
-                    Bitmap.Config.ARGB_8888);
-        }
+        // not in cache; we need to load it from the db
+        final long traceStart = LauncherTrace.begin();
+        Bitmap unusedBitmap = obtainBitmap();
         Bitmap preview = readFromDb(name, unusedBitmap);
 
         if (preview != null) {
+            LauncherTrace.end(LauncherTrace.SPAN_WIDGET_PREVIEW, traceStart, 0);
             synchronized(mLoadedPreviews) {
-                mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+                if (preview != unusedBitmap) {
+                    addToPoolLocked(unusedBitmap);
+                }
+                mDecodeCount++;
             }
-            return preview;
+            return addPreview(name, preview, false);
         } else {
             // it's not in the db... we need to generate it
             final Bitmap generatedPreview = generatePreview(o, unusedBitmap);
+            LauncherTrace.end(LauncherTrace.SPAN_WIDGET_PREVIEW, traceStart, 1);
             preview = generatedPreview;
             if (preview != unusedBitmap) {
                 throw new RuntimeException("generatePreview is not recycling the bitmap " + o);
             }
-
             synchronized(mLoadedPreviews) {
-                mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+                mGenerateCount++;
+            }
+            preview = addPreview(name, generatedPreview, true);
+            if (preview != generatedPreview) {
+                // Another thread loaded the same preview meanwhile, it owns the db write and
+                // our copy is back in the pool
+                return preview;
             }
 
             // write to db on a thread pool... this can be done lazily and improves the performance
@@ -269,6 +345,8 @@ public class WidgetPreviewLoader {
             new AsyncTask<Void, Void, Void>() {
                 public Void doInBackground(Void ... args) {
                     writeToDb(o, generatedPreview);
+                    // Only now can the bitmap be reused for another preview
+                    recycleBitmap(o, generatedPreview);
                     return null;
                 }
             }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
@@ -277,22 +355,168 @@ public class WidgetPreviewLoader {
         }
     }
 
+    /**
+     * Returns a cleared bitmap of the preview size, reusing one from the pool if possible.
+     */
+    private Bitmap obtainBitmap() {
+        final int width = mPreviewBitmapWidth;
+        final int height = mPreviewBitmapHeight;
+        Bitmap unusedBitmap = null;
+        synchronized(mLoadedPreviews) {
+            ArrayList<Bitmap> bucket = mUnusedBitmaps.get(getPoolKey(width, height));
+            if (bucket != null && !bucket.isEmpty()) {
+                unusedBitmap = bucket.remove(bucket.size() - 1);
+                mPoolBytes -= unusedBitmap.getByteCount();
+                mReuseCount++;
+            } else {
+                mAllocationCount++;
+            }
+        }
+        if (unusedBitmap != null) {
+            final Canvas c = mCachedAppWidgetPreviewCanvas.get();
+            c.setBitmap(unusedBitmap);
+            c.drawColor(0, PorterDuff.Mode.CLEAR);
+            c.setBitmap(null);
+            return unusedBitmap;
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Adds a freshly loaded preview to the cache, unless another thread got there first, and
+     * returns the cached preview. A preview that lost the race is put back in the pool. If
+     * pendingWrite is set and the preview was added, it is kept from being reused until the
+     * writer calls {@link #recycleBitmap}.
+     */
+    private Bitmap addPreview(String name, Bitmap preview, boolean pendingWrite) {
+        synchronized(mLoadedPreviews) {
+            PreviewEntry entry = mLoadedPreviews.get(name);
+            if (entry == null) {
+                entry = new PreviewEntry(preview);
+                mLoadedPreviews.put(name, entry);
+                mPreviewBytes += preview.getByteCount();
+                if (pendingWrite) {
+                    entry.users++;
+                }
+            } else if (entry.bitmap != preview) {
+                // Nobody else has seen this copy, it can go straight back to the pool
+                addToPoolLocked(preview);
+            }
+            entry.users++;
+            trimLocked(mMaxPreviewBytes);
+            return entry.bitmap;
+        }
+    }
+
+    /**
+     * Called when a preview returned by {@link #getPreview} is no longer shown. It stays cached,
+     * and its bitmap becomes reusable once it is evicted.
+     */
     public void recycleBitmap(Object o, Bitmap bitmapToRecycle) {
         String name = getObjectName(o);
         synchronized (mLoadedPreviews) {
-            if (mLoadedPreviews.containsKey(name)) {
-                Bitmap b = mLoadedPreviews.get(name).get();
-                if (b == bitmapToRecycle) {
-                    mLoadedPreviews.remove(name);
-                    if (bitmapToRecycle.isMutable()) {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(new SoftReference<Bitmap>(b));
-                        }
-                    }
-                } else {
-                    throw new RuntimeException("Bitmap passed in doesn't match up");
+            PreviewEntry entry = mLoadedPreviews.get(name);
+            // A preview evicted while it was shown is simply dropped: the cache no longer knows
+            // who else may be holding on to it.
+            if (entry != null && entry.bitmap == bitmapToRecycle && entry.users > 0) {
+                entry.users--;
+                trimLocked(mMaxPreviewBytes);
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used previews that are not shown until the cache fits in
+     * maxBytes. Must be called holding mLoadedPreviews.
+     */
+    private void trimLocked(long maxBytes) {
+        Iterator<PreviewEntry> it = mLoadedPreviews.values().iterator();
+        while (mPreviewBytes > maxBytes && it.hasNext()) {
+            PreviewEntry entry = it.next();
+            if (entry.users > 0) {
+                continue;
+            }
+            it.remove();
+            mPreviewBytes -= entry.bitmap.getByteCount();
+            mEvictionCount++;
+            addToPoolLocked(entry.bitmap);
+        }
+    }
+
+    /**
+     * Keeps a bitmap nobody uses any more for reuse as inBitmap. Must be called holding
+     * mLoadedPreviews.
+     */
+    private void addToPoolLocked(Bitmap b) {
+        if (!b.isMutable() || b.getByteCount() > mMaxPoolBytes) {
+            return;
+        }
+        final int key = getPoolKey(b.getWidth(), b.getHeight());
+        ArrayList<Bitmap> bucket = mUnusedBitmaps.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mUnusedBitmaps.put(key, bucket);
+        }
+        bucket.add(b);
+        mPoolBytes += b.getByteCount();
+
+        // Drop bitmaps of other sizes first, they are leftovers from a previous configuration.
+        final int currentKey = getPoolKey(mPreviewBitmapWidth, mPreviewBitmapHeight);
+        for (int i = 0; i < mUnusedBitmaps.size() && mPoolBytes > mMaxPoolBytes; i++) {
+            if (mUnusedBitmaps.keyAt(i) != currentKey) {
+                mPoolBytes -= releaseBucketLocked(mUnusedBitmaps.valueAt(i), mMaxPoolBytes);
+            }
+        }
+        ArrayList<Bitmap> current = mUnusedBitmaps.get(currentKey);
+        if (mPoolBytes > mMaxPoolBytes && current != null) {
+            mPoolBytes -= releaseBucketLocked(current, mMaxPoolBytes);
+        }
+    }
+
+    /**
+     * Drops bitmaps from the bucket until the pool fits in maxBytes, returns the bytes released.
+     */
+    private long releaseBucketLocked(ArrayList<Bitmap> bucket, long maxBytes) {
+        long released = 0;
+        while (!bucket.isEmpty() && mPoolBytes - released > maxBytes) {
+            released += bucket.remove(0).getByteCount();
+        }
+        return released;
+    }
+
+    private static int getPoolKey(int width, int height) {
+        return (width << 16) | (height & 0xffff);
+    }
+
+    /**
+     * Releases the previews that are not shown and the pooled bitmaps.
+     */
+    public void trimMemory() {
+        synchronized (mLoadedPreviews) {
+            Iterator<PreviewEntry> it = mLoadedPreviews.values().iterator();
+            while (it.hasNext()) {
+                PreviewEntry entry = it.next();
+                if (entry.users == 0) {
+                    it.remove();
+                    mPreviewBytes -= entry.bitmap.getByteCount();
+                    mEvictionCount++;
                 }
             }
+            mUnusedBitmaps.clear();
+            mPoolBytes = 0;
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (mLoadedPreviews) {
+            final int obtained = mReuseCount + mAllocationCount;
+            writer.println(prefix + "WidgetPreviewLoader: previews=" + mLoadedPreviews.size()
+                    + " previewBytes=" + mPreviewBytes + "/" + mMaxPreviewBytes
+                    + " poolBytes=" + mPoolBytes + "/" + mMaxPoolBytes);
+            writer.println(prefix + "  hits=" + mHitCount + " decodes=" + mDecodeCount
+                    + " generates=" + mGenerateCount + " evictions=" + mEvictionCount
+                    + " reuse=" + mReuseCount + "/" + obtained
+                    + (obtained > 0 ? " (" + (mReuseCount * 100 / obtained) + "%)" : ""));
         }
     }
 
@@ -369,9 +593,7 @@ public class WidgetPreviewLoader {
         ContentValues values = new ContentValues();
 
         values.put(CacheDb.COLUMN_NAME, name);
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, stream.toByteArray());
+        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, mFormat.encode(preview));
         values.put(CacheDb.COLUMN_SIZE, mSize);
         try {
             db.insert(CacheDb.TABLE_NAME, null, values);
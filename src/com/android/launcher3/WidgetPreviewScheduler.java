@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads widget previews on a small pool of background threads. Pending previews are kept in a
+ * priority queue ordered by the distance of their page from the target page, so the page the
+ * user is looking at always loads first, and each preview is delivered as soon as it is ready.
+ *
+ * All the methods of this class must be called on the UI thread, and the callbacks are made
+ * on the UI thread.
+ */
+class WidgetPreviewScheduler {
+
+    interface Callbacks {
+        /**
+         * Called when the preview of the item at index on page has been loaded. The callee owns
+         * the preview, and gives it back with {@link WidgetPreviewLoader#recycleBitmap} once it
+         * is no longer shown or if it is not shown at all.
+         */
+        void onPreviewLoaded(int page, int index, Object item, Bitmap preview);
+
+        /**
+         * Called when the last pending preview of the page has been delivered.
+         */
+        void onPageLoaded(int page);
+    }
+
+    private static final class Request {
+        final int page;
+        final int index;
+        final Object item;
+        final int sequence;
+        // Set on the UI thread, read by the loader threads to skip the work.
+        volatile boolean cancelled;
+
+        Request(int page, int index, Object item, int sequence) {
+            this.page = page;
+            this.index = index;
+            this.item = item;
+            this.sequence = sequence;
+        }
+    }
+
+    private static Executor sExecutor;
+
+    private final WidgetPreviewLoader mLoader;
+    private final Callbacks mCallbacks;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by mQueue; mTargetPage is read by the queue's comparator.
+    private final PriorityQueue<Request> mQueue;
+    private int mTargetPage;
+
+    // Requests that are queued or running, only touched on the UI thread.
+    private final ArrayList<Request> mRequests = new ArrayList<Request>();
+    private final SparseIntArray mPendingPerPage = new SparseIntArray();
+    private int mNextSequence;
+
+    // Each submitted runnable loads the most urgent request at the time it gets to run, rather
+    // than the request it was submitted for.
+    private final Runnable mLoadNext = new Runnable() {
+        @Override
+        public void run() {
+            final Request request;
+            synchronized (mQueue) {
+                request = mQueue.poll();
+            }
+            if (request == null || request.cancelled) {
+                return;
+            }
+            final Bitmap preview = mLoader.getPreview(request.item);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(request, preview);
+                }
+            });
+        }
+    };
+
+    WidgetPreviewScheduler(WidgetPreviewLoader loader, Callbacks callbacks) {
+        mLoader = loader;
+        mCallbacks = callbacks;
+        mQueue = new PriorityQueue<Request>(16, new Comparator<Request>() {
+            @Override
+            public int compare(Request lhs, Request rhs) {
+                int diff = Math.abs(lhs.page - mTargetPage) - Math.abs(rhs.page - mTargetPage);
+                return diff != 0 ? diff : lhs.sequence - rhs.sequence;
+            }
+        });
+    }
+
+    /**
+     * Queues the preview of the item at index on page.
+     */
+    void load(int page, int index, Object item) {
+        Request request = new Request(page, index, item, mNextSequence++);
+        mRequests.add(request);
+        mPendingPerPage.put(page, mPendingPerPage.get(page) + 1);
+        synchronized (mQueue) {
+            mQueue.add(request);
+        }
+        getExecutor().execute(mLoadNext);
+    }
+
+    /**
+     * Sets the page whose previews should be loaded first, typically the page being scrolled to.
+     */
+    void setTargetPage(int page) {
+        synchronized (mQueue) {
+            if (mTargetPage == page) {
+                return;
+            }
+            mTargetPage = page;
+            if (mQueue.size() > 1) {
+                // The priorities changed, re-heapify the queue.
+                ArrayList<Request> pending = new ArrayList<Request>(mQueue);
+                mQueue.clear();
+                mQueue.addAll(pending);
+            }
+        }
+    }
+
+    /**
+     * Cancels the requests for the pages outside of [lowerPage, upperPage].
+     */
+    void cancelOutside(int lowerPage, int upperPage) {
+        for (int i = mRequests.size() - 1; i >= 0; i--) {
+            Request request = mRequests.get(i);
+            if (request.page < lowerPage || request.page > upperPage) {
+                cancel(i);
+            }
+        }
+    }
+
+    /**
+     * Cancels the requests for the page.
+     */
+    void cancelPage(int page) {
+        for (int i = mRequests.size() - 1; i >= 0; i--) {
+            if (mRequests.get(i).page == page) {
+                cancel(i);
+            }
+        }
+    }
+
+    /**
+     * Cancels all the requests and returns the pages that had requests pending.
+     */
+    ArrayList<Integer> cancelAll() {
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < mPendingPerPage.size(); i++) {
+            if (mPendingPerPage.valueAt(i) > 0) {
+                pages.add(mPendingPerPage.keyAt(i));
+            }
+        }
+        for (int i = mRequests.size() - 1; i >= 0; i--) {
+            cancel(i);
+        }
+        return pages;
+    }
+
+    private void cancel(int requestIndex) {
+        Request request = mRequests.remove(requestIndex);
+        request.cancelled = true;
+        synchronized (mQueue) {
+            mQueue.remove(request);
+        }
+        decrementPending(request.page);
+    }
+
+    private void deliver(Request request, Bitmap preview) {
+        if (request.cancelled) {
+            // Cancelled while it was loading, nobody is going to show it.
+            if (preview != null) {
+                mLoader.recycleBitmap(request.item, preview);
+            }
+            return;
+        }
+        mRequests.remove(request);
+        mCallbacks.onPreviewLoaded(request.page, request.index, request.item, preview);
+        if (decrementPending(request.page)) {
+            mCallbacks.onPageLoaded(request.page);
+        }
+    }
+
+    /**
+     * Returns true if that was the last pending request of the page.
+     */
+    private boolean decrementPending(int page) {
+        int pending = mPendingPerPage.get(page) - 1;
+        if (pending > 0) {
+            mPendingPerPage.put(page, pending);
+            return false;
+        }
+        mPendingPerPage.delete(page);
+        return true;
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            // Previews are decoded or rendered on a couple of threads at most, so that loading
+            // the widget tray doesn't compete with the UI thread for every core.
+            final int threads = Math.max(1,
+                    Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+            sExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("launcher-widget-previews-" + mCount.getAndIncrement()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
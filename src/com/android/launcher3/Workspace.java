@@ -5128,6 +5128,30 @@ public class Workspace extends SmoothPagedView
         });
     }
 
+    /**
+     * Updates the unread badges of the shortcuts launching the apps.
+     */
+    void updateUnreadBadges(ArrayList<AppInfo> apps) {
+        final HashSet<ComponentName> components = new HashSet<ComponentName>();
+        for (AppInfo app : apps) {
+            components.add(app.componentName);
+        }
+        mapOverItems(MAP_RECURSE, new ItemOperator() {
+            @Override
+            public boolean evaluate(ItemInfo info, View v, View parent) {
+                if (info instanceof ShortcutInfo && v instanceof BubbleTextView &&
+                        components.contains(((ShortcutInfo) info).getTargetComponent())) {
+                    ((BubbleTextView) v).updateUnreadBadge();
+                    if (parent != null) {
+                        parent.invalidate();
+                    }
+                }
+                // process all the shortcuts
+                return false;
+            }
+        });
+    }
+
     public void removeAbandonedPromise(String packageName, UserHandleCompat user) {
         ArrayList<String> packages = new ArrayList<String>(1);
         packages.add(packageName);
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ContentResolver;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Cursor over the favorites table used by the workspace loader. The icon column is left out of
+ * the main query so that the cursor windows only hold the small metadata columns. The icons of
+ * the shortcuts that carry their own bitmap are read by a second query, which is walked along
+ * with the main one so that only its current window of icons is held in memory. Any other icon
+ * is read on demand when the loader asks for it.
+ *
+ * The cursor also counts the rows, cursor window fills and icon bytes read by the loader.
+ */
+class WorkspaceCursor extends CursorWrapper {
+
+    // Every column read by the loader, except for the icon.
+    private static final String[] PROJECTION = {
+            LauncherSettings.Favorites._ID,
+            LauncherSettings.Favorites.INTENT,
+            LauncherSettings.Favorites.TITLE,
+            LauncherSettings.Favorites.ICON_TYPE,
+            LauncherSettings.Favorites.ICON_PACKAGE,
+            LauncherSettings.Favorites.ICON_RESOURCE,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.APPWIDGET_ID,
+            LauncherSettings.Favorites.APPWIDGET_PROVIDER,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY,
+            LauncherSettings.Favorites.SPANX,
+            LauncherSettings.Favorites.SPANY,
+            LauncherSettings.Favorites.RESTORED,
+            LauncherSettings.Favorites.PROFILE_ID,
+            LauncherSettings.Favorites.HIDDEN,
+            LauncherSettings.Favorites.SUBTYPE,
+            LauncherSettings.Favorites.MODIFIED,
+    };
+
+    private static final String[] ICON_PROJECTION = {
+            LauncherSettings.Favorites._ID,
+            LauncherSettings.Favorites.ICON,
+    };
+
+    // Both queries are in row id order, so that the icon cursor can follow the main one.
+    private static final String SORT_ORDER = LauncherSettings.Favorites._ID + " ASC";
+
+    private final ContentResolver mResolver;
+    private final Uri mContentUri;
+    private final int mIdIndex;
+    // The icon is exposed as an extra column past the end of the query.
+    private final int mIconIndex;
+    private final AbstractWindowedCursor mWindowedCursor;
+
+    private Cursor mIconCursor;
+    private AbstractWindowedCursor mIconWindowedCursor;
+    private int mIconWindowStart = -1;
+
+    // Icon of the current row, so that isNull() and getBlob() only read it once.
+    private long mIconId = -1;
+    private byte[] mIcon;
+
+    private final long mStartTime;
+    private int mRows;
+    private int mWindowFills;
+    private int mWindowStart = -1;
+    private int mIcons;
+    private long mIconBytes;
+    private int mIconQueries;
+
+    private WorkspaceCursor(Cursor cursor, ContentResolver resolver, Uri contentUri,
+            long startTime) {
+        super(cursor);
+        mResolver = resolver;
+        mContentUri = contentUri;
+        mIdIndex = cursor.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+        mIconIndex = cursor.getColumnCount();
+        mWindowedCursor = getWindowedCursor(cursor);
+        mStartTime = startTime;
+    }
+
+    /**
+     * Queries the favorites and the shortcut icons. The application icons are queried along
+     * with them if withAppIcons is set, otherwise they are only read when asked for.
+     *
+     * @return the cursor, or null if the query failed.
+     */
+    static WorkspaceCursor query(ContentResolver resolver, Uri contentUri,
+            boolean withAppIcons) {
+        final long startTime = SystemClock.uptimeMillis();
+        final Cursor c = resolver.query(contentUri, PROJECTION, null, null, SORT_ORDER);
+        if (c == null) {
+            return null;
+        }
+        WorkspaceCursor cursor = new WorkspaceCursor(c, resolver, contentUri, startTime);
+
+        String selection = "(" + LauncherSettings.Favorites.ITEM_TYPE + "="
+                + LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT + " AND "
+                + LauncherSettings.Favorites.ICON_TYPE + "="
+                + LauncherSettings.Favorites.ICON_TYPE_BITMAP + ")";
+        if (withAppIcons) {
+            selection += " OR " + LauncherSettings.Favorites.ITEM_TYPE + "="
+                    + LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
+        }
+        cursor.mIconCursor = resolver.query(contentUri, ICON_PROJECTION, selection, null,
+                SORT_ORDER);
+        cursor.mIconWindowedCursor = getWindowedCursor(cursor.mIconCursor);
+        return cursor;
+    }
+
+    private byte[] getIcon() {
+        final long id = super.getLong(mIdIndex);
+        if (id != mIconId) {
+            mIcon = readIcon(id);
+            mIconId = id;
+            if (mIcon != null) {
+                mIcons++;
+                mIconBytes += mIcon.length;
+            }
+        }
+        return mIcon;
+    }
+
+    private byte[] readIcon(long id) {
+        final Cursor c = mIconCursor;
+        if (c != null) {
+            while (c.isBeforeFirst() || (!c.isAfterLast() && c.getLong(0) < id)) {
+                if (!c.moveToNext()) {
+                    break;
+                }
+                mIconWindowStart = countWindowFill(mIconWindowedCursor, mIconWindowStart);
+            }
+            if (!c.isAfterLast() && c.getLong(0) == id) {
+                return c.getBlob(1);
+            }
+        }
+
+        // Not a shortcut icon, only happens when an application icon is missing.
+        byte[] icon = null;
+        final Cursor iconCursor = mResolver.query(mContentUri, ICON_PROJECTION,
+                LauncherSettings.Favorites._ID + "=" + id, null, null);
+        if (iconCursor != null) {
+            try {
+                if (iconCursor.moveToNext()) {
+                    icon = iconCursor.getBlob(1);
+                }
+            } finally {
+                iconCursor.close();
+            }
+        }
+        mIconQueries++;
+        return icon;
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (!super.moveToNext()) {
+            return false;
+        }
+        mRows++;
+        mWindowStart = countWindowFill(mWindowedCursor, mWindowStart);
+        return true;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mIconIndex + 1;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return LauncherSettings.Favorites.ICON.equals(columnName)
+                ? mIconIndex : super.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        return LauncherSettings.Favorites.ICON.equals(columnName)
+                ? mIconIndex : super.getColumnIndexOrThrow(columnName);
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return columnIndex == mIconIndex
+                ? LauncherSettings.Favorites.ICON : super.getColumnName(columnIndex);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        final String[] names = super.getColumnNames();
+        final String[] withIcon = new String[names.length + 1];
+        System.arraycopy(names, 0, withIcon, 0, names.length);
+        withIcon[names.length] = LauncherSettings.Favorites.ICON;
+        return withIcon;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (columnIndex == mIconIndex) {
+            return getIcon() == null ? FIELD_TYPE_NULL : FIELD_TYPE_BLOB;
+        }
+        return super.getType(columnIndex);
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return columnIndex == mIconIndex ? getIcon() : super.getBlob(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return columnIndex == mIconIndex ? getIcon() == null : super.isNull(columnIndex);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (mIconCursor != null) {
+            mIconCursor.close();
+            mIconCursor = null;
+        }
+        mIcon = null;
+    }
+
+    /**
+     * Returns the rows per second and cursor window fills since the query, and the number and
+     * total size of the icon blobs handed to the loader.
+     */
+    String getStats() {
+        final long elapsed = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+        return mRows + " rows in " + elapsed + "ms (" + (mRows * 1000L / elapsed) + " rows/s), "
+                + mWindowFills + " window fills, " + mIcons + " icons of " + mIconBytes
+                + " bytes (" + mIconQueries + " read on demand)";
+    }
+
+    private int countWindowFill(AbstractWindowedCursor cursor, int windowStart) {
+        final CursorWindow window = cursor != null ? cursor.getWindow() : null;
+        if (window != null && window.getStartPosition() != windowStart) {
+            mWindowFills++;
+            return window.getStartPosition();
+        }
+        return windowStart;
+    }
+
+    private static AbstractWindowedCursor getWindowedCursor(Cursor cursor) {
+        while (cursor instanceof CursorWrapper) {
+            cursor = ((CursorWrapper) cursor).getWrappedCursor();
+        }
+        return cursor instanceof AbstractWindowedCursor ? (AbstractWindowedCursor) cursor : null;
+    }
+}
@@ -18,6 +18,7 @@ package com.android.launcher3.locale;
 
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
 
@@ -36,6 +37,30 @@ public class HanziToPinyin {
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
+    // Non ASCII characters transliterated so far. Titles are made of a small set of characters,
+    // so running the transliterators once per character is enough. Guarded by itself.
+    private final SparseArray<CharToken> mCharTokens = new SparseArray<CharToken>();
+
+    // ASCII characters as strings, so that Latin text is tokenized without allocations.
+    private static final String[] ASCII_STRINGS = new String[128];
+    static {
+        for (int i = 0; i < ASCII_STRINGS.length; i++) {
+            ASCII_STRINGS[i] = Character.toString((char) i);
+        }
+    }
+
+    private static final class CharToken {
+        final int type;
+        final String source;
+        final String target;
+
+        CharToken(int type, String source, String target) {
+            this.type = type;
+            this.source = source;
+            this.target = target;
+        }
+    }
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -94,30 +119,43 @@ public class HanziToPinyin {
     }
 
     private void tokenize(char character, Token token) {
-        token.source = Character.toString(character);
-
         // ASCII
         if (character < 128) {
             token.type = Token.LATIN;
+            token.source = ASCII_STRINGS[character];
             token.target = token.source;
             return;
         }
 
+        CharToken charToken;
+        synchronized (mCharTokens) {
+            charToken = mCharTokens.get(character);
+        }
+        if (charToken == null) {
+            charToken = transliterateChar(character);
+            synchronized (mCharTokens) {
+                mCharTokens.put(character, charToken);
+            }
+        }
+        token.type = charToken.type;
+        token.source = charToken.source;
+        token.target = charToken.target;
+    }
+
+    private CharToken transliterateChar(char character) {
+        final String source = Character.toString(character);
+
         // Extended Latin. Transcode these to ASCII equivalents
         if (character < 0x250 || (0x1e00 <= character && character < 0x1eff)) {
-            token.type = Token.LATIN;
-            token.target = mAsciiTransliterator == null ? token.source :
-                    mAsciiTransliterator.transliterate(token.source);
-            return;
+            return new CharToken(Token.LATIN, source, mAsciiTransliterator == null ? source :
+                    mAsciiTransliterator.transliterate(source));
         }
 
-        token.type = Token.PINYIN;
-        token.target = mPinyinTransliterator.transliterate(token.source);
-        if (TextUtils.isEmpty(token.target) ||
-                TextUtils.equals(token.source, token.target)) {
-            token.type = Token.UNKNOWN;
-            token.target = token.source;
+        final String target = mPinyinTransliterator.transliterate(source);
+        if (TextUtils.isEmpty(target) || TextUtils.equals(source, target)) {
+            return new CharToken(Token.UNKNOWN, source, source);
         }
+        return new CharToken(Token.PINYIN, source, target);
     }
 
     public String transliterate(final String input) {
@@ -20,6 +20,7 @@ import android.provider.ContactsContract.FullNameStyle;
 import android.provider.ContactsContract.PhoneticNameStyle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.launcher3.locale.HanziToPinyin.Token;
 
@@ -416,9 +417,19 @@ public class LocaleUtils {
     private static final String JAPANESE_LANGUAGE = Locale.JAPANESE.getLanguage().toLowerCase();
     private static LocaleUtils sSingleton;
 
+    // Enough for the titles of all the apps of a well stocked drawer.
+    private static final int BUCKET_CACHE_SIZE = 512;
+
     private final LocaleSet mLocales;
     private final LocaleUtilsBase mUtils;
 
+    // Bucket index by name. A new instance is created whenever the locales change, so the
+    // cache is effectively keyed by (name, locales). Only the index is kept: the whole name
+    // pinyin of a Simplified Chinese secondary locale is worked out again on a miss, from the
+    // per character table of HanziToPinyin, and the lookup keys are not cached at all.
+    private final LruCache<String, Integer> mBucketIndexCache =
+            new LruCache<String, Integer>(BUCKET_CACHE_SIZE);
+
     private LocaleUtils(LocaleSet locales) {
         if (locales == null) {
             mLocales = LocaleSet.getDefault();
@@ -463,13 +474,29 @@ public class LocaleUtils {
     }
 
     public int getBucketIndex(String name) {
-        return mUtils.getBucketIndex(name);
+        Integer bucketIndex = mBucketIndexCache.get(name);
+        if (bucketIndex == null) {
+            bucketIndex = mUtils.getBucketIndex(name);
+            mBucketIndexCache.put(name, bucketIndex);
+        }
+        return bucketIndex;
     }
 
     public int getBucketCount() {
         return mUtils.getBucketCount();
     }
 
+    /**
+     * Returns the additional keys the name can be looked up by in the current locale, such as
+     * its pinyin for Chinese or its romaji for Japanese, or null if there are none.
+     */
+    public Iterator<String> getNameLookupKeys(String name) {
+        // Unlike contacts, app titles have no name style, use the one the keys are made for.
+        final int nameStyle = mUtils instanceof JapaneseContactUtils
+                ? PhoneticNameStyle.JAPANESE : FullNameStyle.CHINESE;
+        return mUtils.getNameLookupKeys(name, nameStyle);
+    }
+
     public String getBucketLabel(int bucketIndex) {
         return mUtils.getBucketLabel(bucketIndex);
     }
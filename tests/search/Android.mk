@@ -0,0 +1,31 @@
+# Copyright (C) 2015 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+# Host side tests and benchmark of the app search index, which is plain Java. To run them:
+#   java -cp LauncherSearchIndexTests.jar junit.textui.TestRunner \
+#       com.android.launcher3.PrefixSearchIndexTest
+#   java -cp LauncherSearchIndexTests.jar com.android.launcher3.PrefixSearchIndexBenchmark
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    ../../src/com/android/launcher3/PrefixSearchIndex.java
+
+LOCAL_STATIC_JAVA_LIBRARIES := junit
+
+LOCAL_MODULE := LauncherSearchIndexTests
+
+include $(BUILD_HOST_JAVA_LIBRARY)
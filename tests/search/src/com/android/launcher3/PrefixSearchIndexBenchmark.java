@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Times the indexing of 2,000 synthetic titles in Latin, Cyrillic, Chinese and Japanese
+ * scripts, and the as you type queries over them. The Chinese and Japanese titles get full and
+ * initials lookup keys from fixed syllable tables, standing in for the pinyin and romaji of the
+ * locale.
+ */
+public class PrefixSearchIndexBenchmark {
+
+    private static final int TITLES = 2000;
+    private static final int QUERIES = 20000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final String[] LATIN = {
+        "Google", "Maps", "Photo", "Editor", "Music", "Player", "Smart", "Home", "Bank",
+        "Mobile", "Weather", "Clock", "Notes", "Mail", "Fitness", "Tracker", "Radio", "Video",
+        "Cloud", "Drive", "Scanner", "Keyboard", "Launcher", "Browser", "Store", "Games",
+    };
+    private static final String[] CYRILLIC = {
+        "Почта", "Карты", "Банк", "Музыка", "Погода", "Новости", "Такси", "Заметки",
+    };
+    // Characters with their pinyin, and kana with their romaji.
+    private static final String[][] HANZI = {
+        {"微", "wei"}, {"信", "xin"}, {"支", "zhi"}, {"付", "fu"}, {"宝", "bao"}, {"地", "di"},
+        {"图", "tu"}, {"音", "yin"}, {"乐", "le"}, {"视", "shi"}, {"频", "pin"}, {"天", "tian"},
+        {"气", "qi"}, {"相", "xiang"}, {"机", "ji"}, {"银", "yin"}, {"行", "hang"}, {"新", "xin"},
+        {"闻", "wen"}, {"游", "you"}, {"戏", "xi"}, {"商", "shang"}, {"店", "dian"}, {"云", "yun"},
+    };
+    private static final String[][] KANA = {
+        {"カ", "ka"}, {"メ", "me"}, {"ラ", "ra"}, {"テ", "te"}, {"レ", "re"}, {"ビ", "bi"},
+        {"ニ", "ni"}, {"ュ", "yu"}, {"ス", "su"}, {"マ", "ma"}, {"ッ", "tsu"}, {"プ", "pu"},
+        {"ゲ", "ge"}, {"ム", "mu"}, {"ノ", "no"}, {"ト", "to"},
+    };
+
+    private static final PrefixSearchIndex.LookupKeyProvider SYLLABLES =
+            new PrefixSearchIndex.LookupKeyProvider() {
+        @Override
+        public Iterator<String> getLookupKeys(String name) {
+            final StringBuilder full = new StringBuilder();
+            final StringBuilder initials = new StringBuilder();
+            for (int i = 0; i < name.length(); i++) {
+                final String syllable = getSyllable(name.substring(i, i + 1));
+                if (syllable == null) {
+                    return null;
+                }
+                full.append(syllable);
+                initials.append(syllable.charAt(0));
+            }
+            return Arrays.asList(full.toString(), initials.toString()).iterator();
+        }
+    };
+
+    private static final Comparator<String> BY_NAME = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    private static String getSyllable(String c) {
+        for (String[] pair : HANZI) {
+            if (pair[0].equals(c)) {
+                return pair[1];
+            }
+        }
+        for (String[] pair : KANA) {
+            if (pair[0].equals(c)) {
+                return pair[1];
+            }
+        }
+        return null;
+    }
+
+    private static String pick(Random random, String[] words) {
+        return words[random.nextInt(words.length)];
+    }
+
+    private static String pickSyllables(Random random, String[][] syllables, int count) {
+        final StringBuilder title = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            title.append(syllables[random.nextInt(syllables.length)][0]);
+        }
+        return title.toString();
+    }
+
+    static ArrayList<String> makeTitles(Random random) {
+        final ArrayList<String> titles = new ArrayList<String>(TITLES);
+        for (int i = 0; i < TITLES; i++) {
+            switch (i % 4) {
+                case 0:
+                    titles.add(pick(random, LATIN) + " " + pick(random, LATIN) + " " + i);
+                    break;
+                case 1:
+                    titles.add(pick(random, CYRILLIC) + " " + pick(random, LATIN));
+                    break;
+                case 2:
+                    titles.add(pickSyllables(random, HANZI, 2 + random.nextInt(3)));
+                    break;
+                default:
+                    titles.add(pickSyllables(random, KANA, 3 + random.nextInt(3)));
+                    break;
+            }
+        }
+        return titles;
+    }
+
+    static ArrayList<String> makeQueries(Random random) {
+        final ArrayList<String> queries = new ArrayList<String>(QUERIES);
+        for (int i = 0; i < QUERIES; i++) {
+            final String source;
+            switch (i % 4) {
+                case 0:
+                    source = pick(random, LATIN).toLowerCase();
+                    break;
+                case 1:
+                    source = pick(random, CYRILLIC);
+                    break;
+                case 2:
+                    source = HANZI[random.nextInt(HANZI.length)][1]
+                            + HANZI[random.nextInt(HANZI.length)][1];
+                    break;
+                default:
+                    source = KANA[random.nextInt(KANA.length)][1];
+                    break;
+            }
+            // As typed: one to four characters.
+            queries.add(source.substring(0, Math.min(source.length(), 1 + random.nextInt(4))));
+        }
+        return queries;
+    }
+
+    public static void main(String[] args) {
+        final Random random = new Random(42);
+        final ArrayList<String> titles = makeTitles(random);
+        final ArrayList<String> queries = makeQueries(random);
+
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            final boolean report = round == WARMUP_ROUNDS;
+            final PrefixSearchIndex<String> index =
+                    new PrefixSearchIndex<String>(SYLLABLES, null);
+
+            long start = System.nanoTime();
+            for (String title : titles) {
+                index.add(title, title);
+            }
+            final long addNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            index.indexPending();
+            final long indexNanos = System.nanoTime() - start;
+
+            final long[] queryNanos = new long[queries.size()];
+            long matches = 0;
+            for (int i = 0; i < queries.size(); i++) {
+                start = System.nanoTime();
+                matches += index.query(queries.get(i), BY_NAME).size();
+                queryNanos[i] = System.nanoTime() - start;
+            }
+
+            if (report) {
+                Arrays.sort(queryNanos);
+                long total = 0;
+                for (long nanos : queryNanos) {
+                    total += nanos;
+                }
+                System.out.println(titles.size() + " titles: add " + addNanos / 1000 + "us, "
+                        + "index " + indexNanos / 1000 + "us");
+                System.out.println(queries.size() + " queries, " + matches / queries.size()
+                        + " matches on average: mean " + total / queryNanos.length / 1000.0
+                        + "us, median " + queryNanos[queryNanos.length / 2] / 1000.0
+                        + "us, p99 " + queryNanos[queryNanos.length * 99 / 100] / 1000.0
+                        + "us, max " + queryNanos[queryNanos.length - 1] / 1000.0 + "us");
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link PrefixSearchIndex}, with a fixed table standing in for the transliterations
+ * of the locale.
+ */
+public class PrefixSearchIndexTest extends TestCase {
+
+    private static final PrefixSearchIndex.LookupKeyProvider PINYIN =
+            new PrefixSearchIndex.LookupKeyProvider() {
+        @Override
+        public Iterator<String> getLookupKeys(String name) {
+            if ("微信".equals(name)) {
+                return Arrays.asList("weixin", "wx").iterator();
+            } else if ("支付宝".equals(name)) {
+                return Arrays.asList("zhifubao", "zfb").iterator();
+            }
+            return null;
+        }
+    };
+
+    private static final Comparator<String> BY_NAME = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    /** Runs the indexing when it is scheduled, like the worker thread eventually does. */
+    private static class QueuedExecutor implements Executor {
+        final ArrayList<Runnable> mQueue = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable r) {
+            mQueue.add(r);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+
+    private QueuedExecutor mIndexer;
+    private PrefixSearchIndex<String> mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndexer = new QueuedExecutor();
+        mIndex = new PrefixSearchIndex<String>(PINYIN, mIndexer);
+    }
+
+    private void add(String... names) {
+        for (String name : names) {
+            mIndex.add(name, name);
+        }
+    }
+
+    private void assertQuery(String query, String... expected) {
+        assertEquals(Arrays.asList(expected), mIndex.query(query, BY_NAME));
+    }
+
+    public void testMatchesStartOfNameAndWords() {
+        add("Google Maps", "Maps Explorer", "Camera");
+        mIndexer.runAll();
+        assertQuery("ma", "Google Maps", "Maps Explorer");
+        assertQuery("GOOGLE m", "Google Maps");
+        assertQuery("  cam ", "Camera");
+        assertQuery("aps");
+        assertQuery("");
+    }
+
+    public void testMatchesLookupKeys() {
+        add("微信", "支付宝", "Weather");
+        mIndexer.runAll();
+        assertQuery("we", "Weather", "微信");
+        assertQuery("wei", "微信");
+        assertQuery("wx", "微信");
+        assertQuery("zfb", "支付宝");
+        assertQuery("微", "微信");
+    }
+
+    public void testIndexingIsScheduledOnce() {
+        add("Calendar", "Calculator", "Clock");
+        assertEquals(1, mIndexer.mQueue.size());
+        mIndexer.runAll();
+        add("Contacts");
+        assertEquals(1, mIndexer.mQueue.size());
+    }
+
+    public void testPendingItemsMatchByName() {
+        add("微信", "Weather");
+        // The keys are not made yet, the lookup keys don't match but the names do.
+        assertQuery("wx");
+        assertQuery("we", "Weather");
+        assertQuery("微", "微信");
+        mIndexer.runAll();
+        assertQuery("wx", "微信");
+    }
+
+    public void testRemove() {
+        add("Gmail", "Gallery", "Games");
+        mIndexer.runAll();
+        mIndex.remove("Gallery");
+        assertQuery("ga", "Games");
+        add("Gallery");
+        mIndex.remove("Gallery");
+        mIndexer.runAll();
+        assertQuery("ga", "Games");
+    }
+
+    public void testRename() {
+        final String item = "item";
+        mIndex.add(item, "Music");
+        mIndexer.runAll();
+        mIndex.add(item, "Play Music");
+        assertQuery("mu", item);
+        assertQuery("pl", item);
+        mIndexer.runAll();
+        assertQuery("pl", item);
+        mIndex.add(item, "Radio");
+        mIndexer.runAll();
+        assertQuery("mu");
+        assertQuery("ra", item);
+    }
+
+    public void testClear() {
+        add("Phone", "Photos");
+        mIndexer.runAll();
+        add("Play Store");
+        mIndex.clear();
+        assertQuery("p");
+        mIndexer.runAll();
+        assertQuery("p");
+    }
+
+    public void testDuplicateKeysReturnItemOnce() {
+        add("Music Music");
+        mIndexer.runAll();
+        assertQuery("music", "Music Music");
+    }
+
+    public void testWithoutIndexer() {
+        mIndex = new PrefixSearchIndex<String>(PINYIN, null);
+        add("微信");
+        assertQuery("wx");
+        mIndex.indexPending();
+        assertQuery("wx", "微信");
+    }
+}